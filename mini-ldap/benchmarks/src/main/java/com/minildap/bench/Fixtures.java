@@ -0,0 +1,59 @@
+package com.minildap.bench;
+
+import com.minildap.models.Group;
+import com.minildap.models.User;
+import com.minildap.security.PasswordUtils;
+import com.minildap.store.GroupStore;
+import com.minildap.store.UserStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/** Synthetic directories for the benchmarks; stores run without a journal so save() rewrites the file. */
+public final class Fixtures {
+
+    // one shared hash: generating a million SSHA hashes would dominate setup and is measured separately
+    public static final String HASH = PasswordUtils.hashSSHA("secret");
+
+    private Fixtures() {}
+
+    public static String username(int i) { return "user" + i; }
+
+    public static User user(int i) {
+        return new User(username(i), HASH, username(i) + "@corp.com", "User Number " + i, i % 10 == 0 ? "developer" : "user");
+    }
+
+    public static UserStore userStore(int size) throws IOException {
+        return userStore(size, new File(tempDir(), "users.db"));
+    }
+
+    public static UserStore userStore(int size, File file) {
+        UserStore store = new UserStore(file);
+        for (int i = 0; i < size; i++) store.addUser(user(i));
+        return store;
+    }
+
+    /** groups named group0.., each of the first users members of memberOf of them, spread over the range. */
+    public static GroupStore groupStore(int groups, int users, int memberOf) throws IOException {
+        GroupStore store = new GroupStore(new File(tempDir(), "groups.db"));
+        for (int g = 0; g < groups; g++) store.addGroup(new Group("group" + g));
+        int step = Math.max(1, groups / memberOf);
+        for (int u = 0; u < users; u++) {
+            for (int j = 0; j < memberOf; j++) store.addMember("group" + ((u + j * step) % groups), username(u));
+        }
+        return store;
+    }
+
+    public static File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("minildap-bench").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,49 @@
+package com.minildap.bench;
+
+import com.minildap.store.GroupStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Reverse membership lookups as the directory grows in groups and in groups per user. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupStoreBench {
+
+    private static final int USERS = 1024;
+
+    @Param({"100", "10000"})
+    int groups;
+
+    @Param({"1", "10", "100"})
+    int memberOf;
+
+    GroupStore store;
+
+    @Setup
+    public void setup() throws IOException {
+        store = Fixtures.groupStore(groups, USERS, Math.min(memberOf, groups));
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public List<String> listGroupsOfUser(Cursor c) {
+        return store.listGroupsOfUser(Fixtures.username(c.next++ & (USERS - 1)));
+    }
+
+    @Benchmark
+    public boolean isMember(Cursor c) {
+        int u = c.next++ & (USERS - 1);
+        return store.isMember("group" + (u % groups), Fixtures.username(u));
+    }
+}
@@ -0,0 +1,53 @@
+package com.minildap.bench;
+
+import com.minildap.models.Group;
+import com.minildap.models.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Record rendering: the cached path every read takes, and a fresh render after a change. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBench {
+
+    @Param({"10", "1000"})
+    int members;
+
+    User user;
+    Group group;
+
+    @Setup
+    public void setup() {
+        user = Fixtures.user(7);
+        group = new Group("developers");
+        for (int i = 0; i < members; i++) group.addMember(Fixtures.username(i));
+    }
+
+    @Benchmark
+    public String userToJsonCached() {
+        return user.toJsonPublic();
+    }
+
+    @Benchmark
+    public String userToJsonFresh() {
+        user.setRole("user"); // drops the cached rendering
+        return user.toJsonPublic();
+    }
+
+    @Benchmark
+    public String groupToJsonCached() {
+        return group.toJson();
+    }
+
+    @Benchmark
+    public String groupToJsonAfterChange() {
+        group.removeMember("user0");
+        group.addMember("user0");
+        return group.toJson();
+    }
+}
@@ -0,0 +1,46 @@
+package com.minildap.bench;
+
+import com.minildap.security.Pbkdf2Hasher;
+import com.minildap.security.PasswordUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Cost of one password check per scheme; PBKDF2 is parameterised by its iteration count. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordBench {
+
+    @Param({"10000", "100000"})
+    int pbkdf2Iterations;
+
+    String ssha;
+    Pbkdf2Hasher pbkdf2;
+    String pbkdf2Hash;
+
+    @Setup
+    public void setup() {
+        ssha = PasswordUtils.hashSSHA("Passw0rd!");
+        pbkdf2 = new Pbkdf2Hasher(pbkdf2Iterations);
+        pbkdf2Hash = pbkdf2.hash("Passw0rd!");
+    }
+
+    @Benchmark
+    public boolean verifySSHA() {
+        return PasswordUtils.verifySSHA("Passw0rd!", ssha);
+    }
+
+    @Benchmark
+    public String hashSSHA() {
+        return PasswordUtils.hashSSHA("Passw0rd!");
+    }
+
+    @Benchmark
+    public boolean verifyPBKDF2() {
+        return pbkdf2.verify("Passw0rd!", pbkdf2Hash);
+    }
+}
@@ -0,0 +1,48 @@
+package com.minildap.bench;
+
+import com.minildap.store.UserStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Full rewrite and full reload of users.db, the cost every mutation paid before the journal. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistenceBench {
+
+    @Param({"10000", "100000", "1000000"})
+    int size;
+
+    File dir;
+    UserStore store;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Fixtures.tempDir();
+        store = Fixtures.userStore(size, new File(dir, "users.db"));
+        store.save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        store.save();
+    }
+
+    @Benchmark
+    public UserStore load() throws IOException {
+        UserStore fresh = new UserStore(new File(dir, "users.db"));
+        fresh.load();
+        return fresh;
+    }
+}
@@ -0,0 +1,54 @@
+package com.minildap.bench;
+
+import com.minildap.models.User;
+import com.minildap.store.UserStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Lock-free reads of the user map: point lookups and full listings. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserStoreBench {
+
+    @Param({"10000", "100000", "1000000"})
+    int size;
+
+    UserStore store;
+    String[] probes = new String[1024];
+
+    @Setup
+    public void setup() throws IOException {
+        store = Fixtures.userStore(size);
+        Random r = new Random(42);
+        for (int i = 0; i < probes.length; i++) probes[i] = Fixtures.username(r.nextInt(size));
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public User findByUsername(Cursor c) {
+        return store.findByUsername(probes[c.next++ & 1023]);
+    }
+
+    @Benchmark
+    public User findMissing(Cursor c) {
+        return store.findByUsername("nobody" + (c.next++ & 1023));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<User> getAllUsers() {
+        return store.getAllUsers();
+    }
+}
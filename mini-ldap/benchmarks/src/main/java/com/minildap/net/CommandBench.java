@@ -0,0 +1,63 @@
+package com.minildap.net;
+
+import com.minildap.bench.Fixtures;
+import com.minildap.models.User;
+import com.minildap.security.HashingPool;
+import com.minildap.security.PasswordUtils;
+import com.minildap.service.*;
+import com.minildap.store.GroupStore;
+import com.minildap.store.UserStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-command overhead of CommandHandler: tokenizing alone, and handle() end to end for cheap
+ * commands on an authenticated handler. Lives in com.minildap.net for the package-private entry points.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBench {
+
+    CommandHandler handler;
+
+    @Setup
+    public void setup() throws IOException {
+        File dir = Fixtures.tempDir();
+        UserStore users = Fixtures.userStore(10_000, new File(dir, "users.db"));
+        users.addUser(new User("admin", PasswordUtils.hashSSHA("admin123"), "admin@example.com", "System Admin", "admin"));
+        GroupStore groups = Fixtures.groupStore(100, 1024, 3);
+        HashingPool pool = new HashingPool(1, 16); // daemon threads, nothing to shut down
+        SessionService sessions = new SessionService(3_600_000);
+        handler = new CommandHandler(new AuthService(users, pool), new AuthorizationService(groups),
+                new UserService(users, pool, sessions), new GroupService(groups), sessions);
+        handler.handle("AUTH admin admin123");
+        handler.takeDeferred().join();
+    }
+
+    @Benchmark
+    public String[] tokenize() {
+        return CommandHandler.tokenize("UPDATEUSER user42 user42@corp.com User Number 42");
+    }
+
+    @Benchmark
+    public String handlePing() {
+        return handler.handle("PING");
+    }
+
+    @Benchmark
+    public String handleReadUser() {
+        return handler.handle("READUSER user42");
+    }
+
+    @Benchmark
+    public String handleUnknown() {
+        return handler.handle("FROBNICATE user42");
+    }
+}
@@ -1,7 +1,12 @@
 package com.minildap.client;
 
+import com.minildap.net.BinaryProtocol;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class DirectoryClient {
@@ -10,6 +15,15 @@ public class DirectoryClient {
         String host = "127.0.0.1";
         int port = 5050;
 
+        if (args.length > 0 && "--load".equals(args[0])) {
+            LoadGenerator.main(args);
+            return;
+        }
+        if (args.length > 0 && "--binary".equals(args[0])) {
+            runBinary(host, port);
+            return;
+        }
+
         try (Socket socket = new Socket(host, port);
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
              PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
@@ -24,22 +38,147 @@ public class DirectoryClient {
                 System.out.print("> ");
                 String line = sc.nextLine();
                 if (line.trim().isEmpty()) continue;
+                if (bulk(line.trim(), in, out)) continue;
                 out.println(line);
                 String resp = in.readLine();
                 if (resp == null) { System.out.println("Server closed."); break; }
                 if ("__CLOSE__".equals(resp)) { System.out.println("Bye"); break; }
                 System.out.println(resp);
+                // streamed listings: one MORE line per entry until the final status line
+                while (resp != null && resp.contains("\"status\":\"MORE\"")) {
+                    resp = in.readLine();
+                    System.out.println(resp);
+                }
                 if ("EXIT".equalsIgnoreCase(line.trim())) break;
             }
         }
     }
 
+    // same REPL over length-prefixed frames; arguments may be quoted, e.g. ADDUSER bob pw user b@x.com "Bob Tran"
+    private static void runBinary(String host, int port) throws Exception {
+        try (Socket socket = new Socket(host, port);
+             InputStream in = new BufferedInputStream(socket.getInputStream());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+             Scanner sc = new Scanner(System.in)) {
+
+            System.out.println("Connected to MiniLDAP ("+host+":"+port+", binary)");
+            System.out.println("Server: " + readLine(in));
+            out.write("PROTO BINARY\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            System.out.println("Server: " + readLine(in));
+
+            help();
+
+            int nextId = 1;
+            while (true) {
+                System.out.print("> ");
+                String line = sc.nextLine();
+                List<String> tokens = tokenize(line);
+                if (tokens.isEmpty()) continue;
+                int opcode = BinaryProtocol.opcode(tokens.get(0));
+                if (opcode < 0) { System.out.println("Unknown command: " + tokens.get(0)); continue; }
+                BinaryProtocol.writeRequest(out, opcode, nextId++, tokens.subList(1, tokens.size()).toArray(new String[0]));
+                out.flush();
+                BinaryProtocol.Response resp = BinaryProtocol.readResponse(in);
+                if (resp.status == BinaryProtocol.STATUS_CLOSE) { System.out.println("Bye"); break; }
+                System.out.println(resp.body);
+                while (resp.status == BinaryProtocol.STATUS_MORE) {
+                    resp = BinaryProtocol.readResponse(in);
+                    System.out.println(resp.body);
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("Server closed.");
+        }
+    }
+
+    // IMPORT ... @file streams the file after the command, EXPORT ... @file writes the lines to it
+    private static boolean bulk(String line, BufferedReader in, PrintWriter out) throws IOException {
+        int at = line.lastIndexOf(" @");
+        String upper = line.toUpperCase();
+        if (at < 0 || !(upper.startsWith("IMPORT ") || upper.startsWith("EXPORT "))) return false;
+        File file = new File(line.substring(at + 2).trim());
+        out.println(line.substring(0, at));
+        String resp = in.readLine();
+        if (resp == null) return true;
+
+        if (upper.startsWith("IMPORT")) {
+            System.out.println(resp);
+            if (resp.contains("\"status\":\"ERROR\"")) return true;
+            // replies are read on another thread so a long list of record errors cannot stall the upload
+            Thread printer = new Thread(() -> {
+                try {
+                    String r;
+                    while ((r = in.readLine()) != null) {
+                        System.out.println(r);
+                        if (!r.contains("\"status\":\"MORE\"")) break;
+                    }
+                } catch (IOException ignored) {}
+            });
+            printer.start();
+            try (BufferedReader f = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String rec;
+                // a lone "." would end the import early, and means nothing in CSV or LDIF
+                while ((rec = f.readLine()) != null) if (!rec.trim().equals(".")) out.println(rec);
+            } finally {
+                out.println(".");
+            }
+            try { printer.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            return true;
+        }
+
+        long n = 0;
+        try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            while (resp != null && resp.contains("\"status\":\"MORE\"")) {
+                int start = resp.indexOf("\"line\":\"") + 8;
+                w.println(unescape(resp.substring(start, resp.lastIndexOf('"'))));
+                n++;
+                resp = in.readLine();
+            }
+        }
+        System.out.println(resp);
+        System.out.println(n + " lines written to " + file);
+        return true;
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) c = s.charAt(++i);
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') buf.write(b);
+        return buf.toString("UTF-8").trim();
+    }
+
+    private static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false, inToken = false;
+        for (char ch : line.toCharArray()) {
+            if (ch == '"') { quoted = !quoted; inToken = true; }
+            else if (Character.isWhitespace(ch) && !quoted) {
+                if (inToken) { tokens.add(cur.toString()); cur.setLength(0); inToken = false; }
+            } else { cur.append(ch); inToken = true; }
+        }
+        if (inToken) tokens.add(cur.toString());
+        return tokens;
+    }
+
     private static void help() {
         System.out.println("Commands:");
         System.out.println("  AUTH <username> <password>");
+        System.out.println("  RESUME <token>");
         System.out.println("  LOGOUT");
         System.out.println("  PING");
-        System.out.println("  LISTUSER");
+        System.out.println("  LISTUSER [<limit> [cursor] | STREAM [cursor]]");
         System.out.println("  READUSER <username>");
         System.out.println("  UPDATEUSER <username> <email> <fullName>");
         System.out.println("  ADDUSER <username> <password> <role> [email] [fullName]");
@@ -48,7 +187,18 @@ public class DirectoryClient {
         System.out.println("  DELETEGROUP <groupname>");
         System.out.println("  ADDUSERTOGROUP <username> <group>");
         System.out.println("  REMOVEUSERFROMGROUP <username> <group>");
-        System.out.println("  LISTGROUP");
+        System.out.println("  LISTGROUP [<limit> [cursor] | STREAM [cursor]]");
+        System.out.println("  LISTMEMBERS <group> [<limit> [cursor] | STREAM [cursor]]");
+        System.out.println("  PREFIX <USER|GROUP> <prefix> [limit]");
+        System.out.println("  STATS [RESET]");
+        System.out.println("  SEARCH <filter> [limit]   e.g. SEARCH (&(role=developer)(mail=*@corp.com))");
+        System.out.println("  IMPORT <CSV|LDIF> [UPSERT] [BATCH n] @file   (CSV: username,password,role,email,fullName,group1;group2)");
+        System.out.println("  EXPORT <CSV|LDIF> [HASHES] @file");
+        System.out.println("  WATCH [FROM seq] [USER u] [GROUP g] [KIND user|group|member]   (streams changes until Ctrl+C)");
+        System.out.println("  BEGIN | COMMIT | ROLLBACK   (user/group changes in between are queued and applied all or nothing)");
         System.out.println("  EXIT");
+        System.out.println("Load test: DirectoryClient --load [--connections N] [--rate ops/s] [--duration s] [--warmup s]");
+        System.out.println("           [--mix read=70,list=5,search=0,ping=5,auth=5,update=10,add=3,delete=2] [--user u --password p]");
+        System.out.println("Prefix any command with #<id> to tag it, e.g. #7 READUSER alice; the reply carries \"id\":\"7\"");
     }
 }
@@ -0,0 +1,416 @@
+package com.minildap.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous client for embedding MiniLDAP in an application. Keeps a fixed number of
+ * connections, each logged in once as the service account, and pipelines commands on them:
+ * every command is sent as "#<id> <command>" and its future completes when the reply with
+ * that id arrives. Calls never block the caller; when every connection already has
+ * maxInFlight commands outstanding the future fails with RejectedExecutionException.
+ *
+ *   try (DirectoryPool pool = new DirectoryPool("127.0.0.1", 5050, "svc", "secret", 4)) {
+ *       pool.start();
+ *       pool.readUser("alice").thenAccept(System.out::println);
+ *   }
+ *
+ * Futures complete with the server's JSON line, including {"status":"ERROR"} replies; they fail
+ * only when the connection breaks or the reply does not arrive within the request timeout.
+ * Broken connections are replaced in the background and an idle connection is pinged every
+ * healthCheckMillis.
+ */
+public class DirectoryPool implements AutoCloseable {
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong ids = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+
+    private int maxInFlight = 1024;
+    private long requestTimeoutMillis = 10_000;
+    private long healthCheckMillis = 5_000;
+    private int connectTimeoutMillis = 3_000;
+    private volatile boolean closed;
+
+    public DirectoryPool(String host, int port, String username, String password, int size) {
+        if (size <= 0) throw new IllegalArgumentException("Pool size must be positive");
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.connections = new Connection[size];
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "minildap-pool-health");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public DirectoryPool maxInFlight(int n) { this.maxInFlight = n; return this; }
+
+    public DirectoryPool requestTimeout(long millis) { this.requestTimeoutMillis = millis; return this; }
+
+    public DirectoryPool healthCheck(long millis) { this.healthCheckMillis = millis; return this; }
+
+    public DirectoryPool connectTimeout(int millis) { this.connectTimeoutMillis = millis; return this; }
+
+    /** Opens and authenticates every connection; fails if none can be established. */
+    public DirectoryPool start() throws IOException {
+        IOException last = null;
+        int up = 0;
+        for (int i = 0; i < connections.length; i++) {
+            try {
+                connections[i] = open(i);
+                up++;
+            } catch (IOException e) {
+                last = e;
+                scheduleReconnect(i, 0);
+            }
+        }
+        if (up == 0) {
+            close();
+            throw last;
+        }
+        scheduler.scheduleWithFixedDelay(this::checkHealth, healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    // ---- commands ----
+
+    /** Sends any text-protocol command; the future gets its reply line. */
+    public CompletableFuture<String> send(String command) {
+        return submit(new Pending(line(command), null));
+    }
+
+    /**
+     * For the STREAM forms of LISTUSER/LISTGROUP/LISTMEMBERS: each "MORE" line goes to onEntry as
+     * it arrives, the future completes with the final status line.
+     */
+    public CompletableFuture<String> stream(String command, Consumer<String> onEntry) {
+        return submit(new Pending(line(command), onEntry));
+    }
+
+    public CompletableFuture<String> ping() { return send("PING"); }
+
+    public CompletableFuture<String> readUser(String username) { return send("READUSER " + arg(username)); }
+
+    public CompletableFuture<String> addUser(String username, String password, String role, String email, String fullName) {
+        return send("ADDUSER " + arg(username) + " " + arg(password) + " " + arg(role) + " " + arg(email) + " " + fullName);
+    }
+
+    public CompletableFuture<String> updateUser(String username, String email, String fullName) {
+        return send("UPDATEUSER " + arg(username) + " " + arg(email) + " " + fullName);
+    }
+
+    public CompletableFuture<String> deleteUser(String username) { return send("DELETEUSER " + arg(username)); }
+
+    public CompletableFuture<String> listUsers(int limit, String cursor) {
+        return send("LISTUSER " + limit + (cursor == null ? "" : " " + arg(cursor)));
+    }
+
+    public CompletableFuture<String> createGroup(String group) { return send("CREATEGROUP " + arg(group)); }
+
+    public CompletableFuture<String> deleteGroup(String group) { return send("DELETEGROUP " + arg(group)); }
+
+    public CompletableFuture<String> addUserToGroup(String username, String group) {
+        return send("ADDUSERTOGROUP " + arg(username) + " " + arg(group));
+    }
+
+    public CompletableFuture<String> removeUserFromGroup(String username, String group) {
+        return send("REMOVEUSERFROMGROUP " + arg(username) + " " + arg(group));
+    }
+
+    public CompletableFuture<String> listGroups(int limit, String cursor) {
+        return send("LISTGROUP " + limit + (cursor == null ? "" : " " + arg(cursor)));
+    }
+
+    public CompletableFuture<String> listMembers(String group, int limit, String cursor) {
+        return send("LISTMEMBERS " + arg(group) + " " + limit + (cursor == null ? "" : " " + arg(cursor)));
+    }
+
+    public CompletableFuture<String> search(String filter, int limit) { return send("SEARCH " + filter + " " + limit); }
+
+    public CompletableFuture<String> prefix(String kind, String prefix, int limit) {
+        return send("PREFIX " + arg(kind) + " " + arg(prefix) + " " + limit);
+    }
+
+    public CompletableFuture<String> stats() { return send("STATS"); }
+
+    /**
+     * Checks another user's credentials. One connection logs out, logs in as that user, logs out
+     * again and logs back in with the pool's own credentials, all written back to back, so neither
+     * session outlives the check. Commands queued behind it on that connection are written only once
+     * the pool's login is confirmed; if it fails the connection is replaced and they fail with it.
+     */
+    public CompletableFuture<String> authenticate(String username, String password) {
+        Connection c;
+        try {
+            c = pick();
+        } catch (RejectedExecutionException e) {
+            return failed(e);
+        }
+        Pending auth = new Pending(line("AUTH " + arg(username) + " " + arg(password)), null);
+        Pending restore = new Pending(line("AUTH " + arg(this.username) + " " + arg(this.password)), null);
+        restore.barrier = true;
+        c.submit(new Pending("LOGOUT", null), auth, new Pending("LOGOUT", null), restore);
+        return auth.future;
+    }
+
+    public static boolean isOk(String reply) {
+        return reply != null && reply.contains("\"status\":\"OK\"");
+    }
+
+    // ---- pool ----
+
+    private CompletableFuture<String> submit(Pending p) {
+        try {
+            pick().submit(p);
+        } catch (RejectedExecutionException e) {
+            return failed(e);
+        }
+        return p.future;
+    }
+
+    // round robin over live connections that still have room
+    private Connection pick() {
+        if (closed) throw new RejectedExecutionException("Pool is closed");
+        int n = connections.length;
+        int start = Math.floorMod(next.getAndIncrement(), n);
+        for (int i = 0; i < n; i++) {
+            Connection c = connections[(start + i) % n];
+            if (c != null && c.alive && c.pending.size() < maxInFlight) return c;
+        }
+        throw new RejectedExecutionException("No connection available to " + host + ":" + port);
+    }
+
+    private Connection open(int slot) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(connectTimeoutMillis);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in.readLine(); // greeting
+            out.write(line("AUTH " + arg(username) + " " + arg(password)) + "\n");
+            out.flush();
+            String reply = in.readLine();
+            if (!isOk(reply)) throw new IOException("Login as " + username + " failed: " + reply);
+            socket.setSoTimeout(0);
+            Connection c = new Connection(slot, socket, in, out);
+            c.start();
+            return c;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void scheduleReconnect(int slot, long attempt) {
+        if (closed) return;
+        long delay = Math.min(30_000, 100L << Math.min(attempt, 8));
+        scheduler.schedule(() -> {
+            if (closed) return;
+            try {
+                connections[slot] = open(slot);
+            } catch (IOException e) {
+                scheduleReconnect(slot, attempt + 1);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkHealth() {
+        long now = System.nanoTime();
+        for (Connection c : connections) {
+            if (c == null || !c.alive) continue;
+            if (now - c.lastReply > TimeUnit.MILLISECONDS.toNanos(healthCheckMillis)) {
+                Pending ping = new Pending("PING", null);
+                c.submit(ping);
+                ping.future.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                        .whenComplete((r, e) -> { if (e != null) c.fail(new IOException("Health check failed", e)); });
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        for (Connection c : connections) if (c != null) c.fail(new IOException("Pool closed"));
+    }
+
+    private static String arg(String s) {
+        if (s == null || s.isEmpty() || s.chars().anyMatch(Character::isWhitespace))
+            throw new IllegalArgumentException("Argument must be a single non-empty word: '" + s + "'");
+        return s;
+    }
+
+    private static String line(String command) {
+        if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0) throw new IllegalArgumentException("Command spans several lines");
+        return command.trim();
+    }
+
+    private static CompletableFuture<String> failed(Throwable e) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
+    private static final class Pending {
+        final String command;
+        final Consumer<String> onEntry;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        long id;
+        // restores the pool's login: nothing after it is written until its reply is OK
+        boolean barrier;
+
+        Pending(String command, Consumer<String> onEntry) {
+            this.command = command;
+            this.onEntry = onEntry;
+        }
+    }
+
+    /**
+     * One socket, a writer thread that batches queued commands into one flush, and a reader
+     * thread that routes replies to their futures by id.
+     */
+    private final class Connection {
+        final int slot;
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        final BlockingQueue<Pending> outbox = new LinkedBlockingQueue<>();
+        volatile boolean alive = true;
+        volatile long lastReply = System.nanoTime();
+
+        Connection(int slot, Socket socket, BufferedReader in, Writer out) {
+            this.slot = slot;
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+
+        void start() {
+            Thread r = new Thread(this::readLoop, "minildap-pool-read-" + slot);
+            Thread w = new Thread(this::writeLoop, "minildap-pool-write-" + slot);
+            r.setDaemon(true);
+            w.setDaemon(true);
+            r.start();
+            w.start();
+        }
+
+        // several commands are queued together so no other command can land between them
+        void submit(Pending... ps) {
+            for (Pending p : ps) {
+                p.id = ids.incrementAndGet();
+                pending.put(p.id, p);
+                p.future.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                        .whenComplete((r, e) -> pending.remove(p.id));
+            }
+            synchronized (outbox) { outbox.addAll(List.of(ps)); }
+            if (!alive) fail(new IOException("Connection closed"));
+        }
+
+        private void writeLoop() {
+            List<Pending> batch = new ArrayList<>();
+            try {
+                while (alive) {
+                    Pending first = outbox.poll(1, TimeUnit.SECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    outbox.drainTo(batch);
+                    for (Pending p : batch) {
+                        if (p.future.isDone() && !p.barrier) continue; // timed out while queued
+                        out.write('#');
+                        out.write(Long.toString(p.id));
+                        out.write(' ');
+                        out.write(p.command);
+                        out.write('\n');
+                        if (p.barrier) {
+                            out.flush();
+                            if (!confirmed(p)) return;
+                        }
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                fail(new IOException("Writer interrupted"));
+            }
+        }
+
+        // whatever follows would run as the checked user, or logged out: give up the connection instead
+        private boolean confirmed(Pending barrier) throws InterruptedException {
+            String reply;
+            try {
+                reply = barrier.future.get();
+            } catch (ExecutionException e) {
+                reply = String.valueOf(e.getCause());
+            }
+            if (isOk(reply)) return true;
+            fail(new IOException("Pool session lost: " + reply));
+            return false;
+        }
+
+        private void readLoop() {
+            try {
+                String reply;
+                while ((reply = in.readLine()) != null) {
+                    lastReply = System.nanoTime();
+                    Pending p = pending.get(idOf(reply));
+                    if (p == null) continue; // timed out, the reply is dropped
+                    if (reply.contains("\"status\":\"MORE\"")) {
+                        if (p.onEntry != null) p.onEntry.accept(reply);
+                        continue;
+                    }
+                    pending.remove(p.id);
+                    p.future.complete(reply);
+                }
+                fail(new EOFException("Server closed the connection"));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // replies to "#<id> ..." start with {"id":"<id>",
+        private long idOf(String reply) {
+            if (!reply.startsWith("{\"id\":\"")) return -1;
+            int end = reply.indexOf('"', 7);
+            try {
+                return Long.parseLong(reply.substring(7, end));
+            } catch (RuntimeException e) {
+                return -1;
+            }
+        }
+
+        void fail(IOException cause) {
+            boolean wasAlive;
+            synchronized (this) {
+                wasAlive = alive;
+                alive = false;
+            }
+            try { socket.close(); } catch (IOException ignored) {}
+            for (Pending p : pending.values()) p.future.completeExceptionally(cause);
+            pending.clear();
+            for (Pending p; (p = outbox.poll()) != null; ) p.future.completeExceptionally(cause);
+            if (wasAlive && connections[slot] == this) scheduleReconnect(slot, 0);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.minildap.client;
+
+import com.minildap.metrics.Histogram;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headless load test: N connections each logged in once, then sending a weighted mix of commands.
+ *
+ *   java -cp out com.minildap.client.DirectoryClient --load --connections 16 --rate 5000 --duration 60
+ *
+ * Without --rate every connection sends its next command as soon as the previous reply arrives
+ * (closed loop). With --rate the commands follow a fixed schedule (open loop) and latency is
+ * measured from the scheduled send time, not the actual one, so a stalled server is charged for
+ * every request it held back (coordinated omission).
+ */
+public class LoadGenerator {
+
+    private static final String[] OPS = {"read", "list", "search", "ping", "auth", "update", "add", "delete"};
+
+    private String host = "127.0.0.1";
+    private int port = 5050;
+    private int connections = 8;
+    private double rate; // total ops/s, 0: closed loop
+    private int durationSec = 30;
+    private int warmupSec = 5;
+    private String username = "admin";
+    private String password = "admin123";
+    private final int[] weights = {70, 5, 0, 5, 5, 10, 3, 2};
+
+    private final Histogram[] latency = new Histogram[OPS.length];
+    private final Histogram all = new Histogram();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean recording;
+    private volatile boolean stopping;
+    private List<String> targets = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        g.parse(args);
+        g.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--load")) continue;
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + a);
+            String v = args[++i];
+            switch (a) {
+                case "--host": host = v; break;
+                case "--port": port = Integer.parseInt(v); break;
+                case "--connections": connections = Integer.parseInt(v); break;
+                case "--rate": rate = Double.parseDouble(v); break;
+                case "--duration": durationSec = Integer.parseInt(v); break;
+                case "--warmup": warmupSec = Integer.parseInt(v); break;
+                case "--user": username = v; break;
+                case "--password": password = v; break;
+                case "--mix": parseMix(v); break;
+                default: throw new IllegalArgumentException("Unknown option " + a);
+            }
+        }
+    }
+
+    // e.g. read=80,update=15,auth=5; operations left out get weight 0
+    private void parseMix(String mix) {
+        Arrays.fill(weights, 0);
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            int op = Arrays.asList(OPS).indexOf(kv[0].trim().toLowerCase());
+            if (op < 0 || kv.length != 2) throw new IllegalArgumentException("Bad mix entry '" + part + "', operations: " + String.join(" ", OPS));
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        if (Arrays.stream(weights).sum() <= 0) throw new IllegalArgumentException("Mix has no weight");
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < OPS.length; i++) latency[i] = new Histogram();
+        loadTargets();
+        System.out.printf("MiniLDAP load: %s:%d, %d connections, %s, warm-up %ds, measure %ds%n", host, port, connections,
+                rate > 0 ? String.format("open loop at %.0f ops/s", rate) : "closed loop", warmupSec, durationSec);
+
+        CountDownLatch done = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            Thread t = new Thread(() -> {
+                try { worker(id, start); }
+                catch (IOException e) { System.err.println("connection " + id + ": " + e.getMessage()); }
+                finally { done.countDown(); }
+            }, "load-" + c);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread.sleep(warmupSec * 1000L);
+        recording = true;
+        long measureStart = System.nanoTime();
+        Thread.sleep(durationSec * 1000L);
+        recording = false;
+        long measured = System.nanoTime() - measureStart;
+        stopping = true;
+        done.await();
+        report(measured);
+    }
+
+    // usernames for READUSER, from the first page of LISTUSER
+    private void loadTargets() throws IOException {
+        try (Conn c = new Conn(host, port)) {
+            c.call("AUTH " + username + " " + password);
+            String page = c.call("LISTUSER 1000");
+            Matcher m = Pattern.compile("\"username\":\"([^\"]*)\"").matcher(page);
+            while (m.find()) targets.add(m.group(1));
+        }
+        if (targets.isEmpty()) targets.add(username);
+    }
+
+    private void worker(int id, long start) throws IOException {
+        Random rnd = new Random(id * 7919L + 1);
+        int total = Arrays.stream(weights).sum();
+        long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        // stagger connections so an open-loop schedule does not send in bursts
+        long intended = start + (interval > 0 ? interval * id / connections : 0);
+        Deque<String> added = new ArrayDeque<>();
+        int seq = 0;
+        try (Conn c = new Conn(host, port)) {
+            String login = c.call("AUTH " + username + " " + password);
+            if (login.contains("\"ERROR\"")) throw new IOException("login failed: " + login);
+            while (!stopping) {
+                int op = pick(rnd, total);
+                String cmd = command(op, id, rnd, added, seq++);
+                if (cmd.startsWith("READUSER")) op = 0; // update/delete before this connection added anyone
+                long sent;
+                if (interval > 0) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    sent = intended;
+                    intended += interval;
+                } else {
+                    sent = System.nanoTime();
+                }
+                // the server keeps every session an AUTH issues, so the previous one is logged out first
+                String resp = op == 4 ? c.call("LOGOUT", cmd) : c.call(cmd);
+                long took = System.nanoTime() - sent;
+                if (recording) {
+                    latency[op].record(took / 1000);
+                    all.record(took / 1000);
+                    if (resp.startsWith("{\"status\":\"ERROR\"")) errors.incrementAndGet();
+                }
+                if (op == 6 && !resp.contains("\"ERROR\"")) added.add(cmd.split(" ")[1]);
+            }
+            // leave the directory as we found it
+            for (String u : added) c.call("DELETEUSER " + u);
+        }
+    }
+
+    private int pick(Random rnd, int total) {
+        int r = rnd.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) return i;
+        }
+        return 0;
+    }
+
+    private String command(int op, int id, Random rnd, Deque<String> added, int seq) {
+        String target = targets.get(rnd.nextInt(targets.size()));
+        switch (op) {
+            case 1: return "LISTGROUP 50";
+            case 2: return "SEARCH (uid=" + target.charAt(0) + "*) 20";
+            case 3: return "PING";
+            case 4: return "AUTH " + username + " " + password;
+            case 5:
+                // only entries this connection created are rewritten
+                if (!added.isEmpty()) return "UPDATEUSER " + added.peekLast() + " " + added.peekLast() + "@load.test Load Test " + seq;
+                return "READUSER " + target;
+            case 6: return "ADDUSER lg" + id + "x" + seq + " pw user lg" + id + "x" + seq + "@load.test Load User";
+            case 7:
+                if (!added.isEmpty()) return "DELETEUSER " + added.poll();
+                return "READUSER " + target;
+            default: return "READUSER " + target;
+        }
+    }
+
+    private void report(long measuredNanos) {
+        double secs = measuredNanos / 1e9;
+        System.out.printf("%nops %d in %.1fs: %.1f ops/s, errors %d%n", all.count(), secs, all.count() / secs, errors.get());
+        System.out.printf("%-8s %10s %9s %9s %9s %9s %9s %9s%n", "op", "count", "mean(us)", "p50", "p90", "p99", "p99.9", "max");
+        for (int i = 0; i < OPS.length; i++) if (latency[i].count() > 0) row(OPS[i], latency[i]);
+        row("all", all);
+        if (rate > 0) System.out.println("latencies are from the scheduled send time (coordinated omission corrected)");
+    }
+
+    private static void row(String name, Histogram h) {
+        System.out.printf("%-8s %10d %9.0f %9d %9d %9d %9d %9d%n", name, h.count(), h.mean(),
+                h.percentile(0.50), h.percentile(0.90), h.percentile(0.99), h.percentile(0.999), h.max());
+    }
+
+    // one blocking text-protocol connection; streamed replies never occur for the commands we send
+    private static final class Conn implements Closeable {
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+
+        Conn(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in.readLine(); // greeting
+        }
+
+        // the commands go out in one write; returns the reply to the last one
+        String call(String... cmds) throws IOException {
+            for (String cmd : cmds) {
+                out.write(cmd);
+                out.write('\n');
+            }
+            out.flush();
+            String resp = null;
+            for (int i = 0; i < cmds.length; i++) {
+                resp = in.readLine();
+                if (resp == null) throw new EOFException("server closed the connection");
+            }
+            return resp;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try { call("LOGOUT", "EXIT"); } catch (IOException ignored) {}
+            socket.close();
+        }
+    }
+}
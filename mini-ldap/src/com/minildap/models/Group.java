@@ -1,20 +1,40 @@
 package com.minildap.models;
 
-import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.stream.Collectors;
 
 public class Group {
     private String name;
-    private Set<String> members = new LinkedHashSet<>();
+    // concurrent so LISTGROUP can iterate while a writer adds or removes members
+    private ConcurrentSkipListSet<String> members = new ConcurrentSkipListSet<>();
+    // bumped after every membership change (writers hold the GroupStore lock); a cached rendering is only served while its version is current,
+    // so a reader that raced a writer can at worst store a rendering that is ignored afterwards
+    private volatile int version;
+    private volatile Rendered json;
+
+    private static final class Rendered {
+        final int version;
+        final String text;
+
+        Rendered(int version, String text) { this.version = version; this.text = text; }
+    }
 
     public Group(String name) { this.name = name; }
 
     public String getName() { return name; }
-    public Set<String> getMembers() { return members; }
+    /** Read-only: changes must go through addMember/removeMember so the cached JSON is invalidated. */
+    public Set<String> getMembers() { return Collections.unmodifiableSet(members); }
 
-    public void addMember(String username) { members.add(username); }
-    public void removeMember(String username) { members.remove(username); }
+    /** Members in name order after the given one (null: from the first), for paging large groups. */
+    public Iterator<String> membersAfter(String after) {
+        return (after == null ? members : members.tailSet(after, false)).iterator();
+    }
+
+    public void addMember(String username) { if (members.add(username)) version++; }
+    public void removeMember(String username) { if (members.remove(username)) version++; }
 
     public String toCsv() {
         String joined = members.stream().collect(Collectors.joining(";"));
@@ -31,6 +51,15 @@ public class Group {
     }
 
     public String toJson() {
+        Rendered r = json;
+        int v = version;
+        if (r != null && r.version == v) return r.text;
+        String text = renderJson();
+        json = new Rendered(v, text);
+        return text;
+    }
+
+    private String renderJson() {
         String ms = members.stream().map(m -> "\""+m.replace("\"","\\\"")+"\"").collect(Collectors.joining(","));
         return "{\"name\":\""+name.replace("\"","\\\"")+"\",\"members\":["+ms+"]}";
     }
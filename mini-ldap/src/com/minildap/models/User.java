@@ -6,6 +6,7 @@ public class User {
     private String email;
     private String fullName;
     private String role; // admin, developer, user
+    private volatile String json; // rendered toJsonPublic(), dropped by every setter
 
     public User(String username, String passwordHash, String email, String fullName, String role) {
         this.username = username;
@@ -21,9 +22,9 @@ public class User {
     public String getFullName() { return fullName; }
     public String getRole() { return role; }
 
-    public void setEmail(String email) { this.email = email; }
-    public void setFullName(String fullName) { this.fullName = fullName; }
-    public void setRole(String role) { this.role = role; }
+    public void setEmail(String email) { this.email = email; json = null; }
+    public void setFullName(String fullName) { this.fullName = fullName; json = null; }
+    public void setRole(String role) { this.role = role; json = null; }
 
     // CSV persistence helpers (escape commas minimally)
     public String toCsv() {
@@ -36,7 +37,14 @@ public class User {
         return new User(p[0], p[1], p[2], p[3], p[4]);
     }
 
+    // UserStore replaces records instead of mutating them, so the cached form is normally built once per version
     public String toJsonPublic() {
+        String j = json;
+        if (j == null) json = j = renderJson();
+        return j;
+    }
+
+    private String renderJson() {
         return "{\"username\":\""+escape(username)+"\",\"email\":\""+escape(nullToEmpty(email))+"\",\"fullName\":\""+escape(nullToEmpty(fullName))+"\",\"role\":\""+escape(nullToEmpty(role))+"\"}";
     }
 
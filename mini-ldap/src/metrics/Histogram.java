@@ -0,0 +1,73 @@
+package com.minildap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram: every power of two is split into 16 linear sub-buckets, so a
+ * reported percentile is within ~6% of the true value over the whole long range, in a fixed 960 slots.
+ * Recording is one array increment plus two counters; readers take a racy but consistent-enough copy.
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+    }
+
+    public long count() { return total.get(); }
+
+    public long max() { return max.get(); }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /** Upper bound of the bucket holding the q-th quantile (0 &lt; q &lt;= 1), 0 when empty. */
+    public long percentile(double q) {
+        long[] c = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += c[i] = counts.get(i);
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += c[i];
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((v >>> shift) & (SUB - 1));
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB) return index;
+        int shift = (index >>> SUB_BITS) - 1;
+        long lower = (long) (SUB + (index & (SUB - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,149 @@
+package com.minildap.metrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics registry, read by the STATS command and exported over JMX
+ * under the "com.minildap" domain.
+ */
+public final class Metrics {
+
+    private static final long STARTED = System.currentTimeMillis();
+    private static final Map<String, Timer> COMMANDS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentSkipListMap<>();
+    private static volatile boolean exported;
+
+    public static final AtomicInteger OPEN_CONNECTIONS = new AtomicInteger();
+    public static final AtomicLong ACCEPTED_CONNECTIONS = new AtomicLong();
+    /** overload protection: accepts refused at the connection cap, commands refused by a rate limit,
+     *  connections closed for idling, and connections closed for not reading their replies */
+    public static final AtomicLong REJECTED_CONNECTIONS = new AtomicLong();
+    public static final AtomicLong RATE_LIMITED = new AtomicLong();
+    public static final AtomicLong IDLE_TIMEOUTS = new AtomicLong();
+    public static final AtomicLong SLOW_CONSUMERS = new AtomicLong();
+    /** open WATCH subscriptions */
+    public static final AtomicInteger WATCHERS = new AtomicInteger();
+    /** primary: replicas following this server, a subset of the watchers */
+    public static final AtomicInteger REPLICAS = new AtomicInteger();
+    /** replica: the primary it follows ("host:port", null on a primary), whether it is connected, the last
+     *  sequence number applied here and the last one the primary reported, and how old the last applied
+     *  change was when it got here (0 once caught up) */
+    public static volatile String REPLICA_OF;
+    public static volatile boolean REPLICA_CONNECTED;
+    public static final AtomicLong REPLICA_APPLIED_SEQ = new AtomicLong();
+    public static final AtomicLong REPLICA_PRIMARY_SEQ = new AtomicLong();
+    public static final AtomicLong REPLICA_LAG_MS = new AtomicLong();
+
+    /** time spent waiting for a store's writer lock (contention with other writers and the snapshotter) */
+    public static final Timer USER_LOCK_WAIT = timer("store.users.lockWait");
+    public static final Timer GROUP_LOCK_WAIT = timer("store.groups.lockWait");
+    /** one force() of the journal, and how long a mutation waits in save() for its record to be durable */
+    public static final Timer JOURNAL_FSYNC = timer("journal.fsync");
+    public static final Timer JOURNAL_SYNC_WAIT = timer("journal.syncWait");
+    /** full rewrite of a .db file: every save() without a journal, or a snapshot */
+    public static final Timer FILE_WRITE = timer("store.fileWrite");
+    public static final Timer SNAPSHOT = timer("store.snapshot");
+
+    private Metrics() {}
+
+    /** Latency of one protocol command, created on first use. */
+    public static Timer command(String name) {
+        return COMMANDS.computeIfAbsent(name, n -> export(new Timer(n), "Command"));
+    }
+
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, n -> export(new Timer(n), "Timer"));
+    }
+
+    public static void resetTimers() {
+        for (Timer t : COMMANDS.values()) t.reset();
+        for (Timer t : TIMERS.values()) t.reset();
+    }
+
+    /** The STATS reply; commands and timers that never fired are left out. */
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\"status\":\"OK\",\"uptimeSec\":").append(uptimeSeconds())
+                .append(",\"connections\":{\"open\":").append(OPEN_CONNECTIONS.get())
+                .append(",\"accepted\":").append(ACCEPTED_CONNECTIONS.get())
+                .append(",\"rejected\":").append(REJECTED_CONNECTIONS.get())
+                .append(",\"idleClosed\":").append(IDLE_TIMEOUTS.get())
+                .append(",\"slowConsumers\":").append(SLOW_CONSUMERS.get()).append('}')
+                .append(",\"rateLimited\":").append(RATE_LIMITED.get())
+                .append(",\"watchers\":").append(WATCHERS.get())
+                .append(",\"replicas\":").append(REPLICAS.get());
+        if (REPLICA_OF != null) {
+            sb.append(",\"replication\":{\"primary\":\"").append(REPLICA_OF)
+                    .append("\",\"connected\":").append(REPLICA_CONNECTED)
+                    .append(",\"appliedSeq\":").append(REPLICA_APPLIED_SEQ.get())
+                    .append(",\"primarySeq\":").append(REPLICA_PRIMARY_SEQ.get())
+                    .append(",\"lagRecords\":").append(replicationLagRecords())
+                    .append(",\"lagMs\":").append(REPLICA_LAG_MS.get()).append('}');
+        }
+        append(sb, "commands", COMMANDS);
+        append(sb, "timers", TIMERS);
+        return sb.append('}').toString();
+    }
+
+    private static void append(StringBuilder sb, String key, Map<String, Timer> timers) {
+        sb.append(",\"").append(key).append("\":{");
+        boolean first = true;
+        for (Timer t : timers.values()) {
+            if (t.getCount() == 0) continue;
+            if (!first) sb.append(',');
+            sb.append('"').append(t.name()).append("\":").append(t.toJson());
+            first = false;
+        }
+        sb.append('}');
+    }
+
+    private static long replicationLagRecords() {
+        return REPLICA_OF == null ? 0 : Math.max(0, REPLICA_PRIMARY_SEQ.get() - REPLICA_APPLIED_SEQ.get());
+    }
+
+    private static long uptimeSeconds() {
+        return (System.currentTimeMillis() - STARTED) / 1000;
+    }
+
+    /** Registers the server gauges and every timer with the platform MBean server, including timers created later. */
+    public static synchronized void registerMBeans() throws Exception {
+        if (exported) return;
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        mbs.registerMBean(new ServerMXBean() {
+            public long getUptimeSeconds() { return uptimeSeconds(); }
+            public int getOpenConnections() { return OPEN_CONNECTIONS.get(); }
+            public long getAcceptedConnections() { return ACCEPTED_CONNECTIONS.get(); }
+            public long getRejectedConnections() { return REJECTED_CONNECTIONS.get(); }
+            public long getRateLimitedCommands() { return RATE_LIMITED.get(); }
+            public long getIdleTimeouts() { return IDLE_TIMEOUTS.get(); }
+            public long getSlowConsumerDisconnects() { return SLOW_CONSUMERS.get(); }
+            public int getWatchers() { return WATCHERS.get(); }
+            public int getReplicas() { return REPLICAS.get(); }
+            public long getReplicationLagRecords() { return replicationLagRecords(); }
+            public long getReplicationLagMillis() { return REPLICA_OF == null ? 0 : REPLICA_LAG_MS.get(); }
+            public void resetTimers() { Metrics.resetTimers(); }
+        }, new ObjectName("com.minildap:type=Server"));
+        exported = true;
+        for (Timer t : COMMANDS.values()) register(mbs, t, "Command");
+        for (Timer t : TIMERS.values()) register(mbs, t, "Timer");
+    }
+
+    private static Timer export(Timer t, String type) {
+        if (exported) register(ManagementFactory.getPlatformMBeanServer(), t, type);
+        return t;
+    }
+
+    private static void register(MBeanServer mbs, Timer t, String type) {
+        try {
+            ObjectName name = new ObjectName("com.minildap:type=" + type + ",name=" + t.name());
+            if (!mbs.isRegistered(name)) mbs.registerMBean(t, name);
+        } catch (Exception e) {
+            System.err.println("JMX registration of " + t.name() + " failed: " + e.getMessage());
+        }
+    }
+}
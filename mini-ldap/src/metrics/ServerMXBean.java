@@ -0,0 +1,18 @@
+package com.minildap.metrics;
+
+/** JMX view of the server-wide gauges. */
+public interface ServerMXBean {
+    long getUptimeSeconds();
+    int getOpenConnections();
+    long getAcceptedConnections();
+    long getRejectedConnections();
+    long getRateLimitedCommands();
+    long getIdleTimeouts();
+    long getSlowConsumerDisconnects();
+    int getWatchers();
+    int getReplicas();
+    /** 0 on a primary */
+    long getReplicationLagRecords();
+    long getReplicationLagMillis();
+    void resetTimers();
+}
@@ -0,0 +1,97 @@
+package com.minildap.metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commands slower than a threshold, with their stage breakdown. The command thread only hands a
+ * small record to a bounded queue (dropping it if the queue is full); a daemon thread formats and
+ * appends the lines, so disk latency never reaches a client.
+ */
+public final class SlowLog {
+
+    private static volatile long thresholdNanos = Long.MAX_VALUE;
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(1024);
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static final class Entry {
+        final long at = System.currentTimeMillis();
+        final String command, target, user, peer;
+        final boolean failed;
+        final long totalNanos;
+        final long[] stages;
+
+        Entry(String command, String target, String user, String peer, boolean failed, long totalNanos, long[] stages) {
+            this.command = command;
+            this.target = target;
+            this.user = user;
+            this.peer = peer;
+            this.failed = failed;
+            this.totalNanos = totalNanos;
+            this.stages = stages.clone();
+        }
+    }
+
+    private SlowLog() {}
+
+    /** Starts logging commands that take thresholdMillis or longer to file; a negative threshold disables it. */
+    public static void start(File file, long thresholdMillis) {
+        if (thresholdMillis < 0) return;
+        thresholdNanos = thresholdMillis * 1_000_000;
+        Thread t = new Thread(() -> writeLoop(file), "minildap-slowlog");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public static boolean isSlow(long totalNanos) {
+        return totalNanos >= thresholdNanos;
+    }
+
+    public static void record(String command, String target, String user, String peer, boolean failed, long totalNanos, long[] stages) {
+        if (!QUEUE.offer(new Entry(command, target, user, peer, failed, totalNanos, stages))) DROPPED.incrementAndGet();
+    }
+
+    private static void writeLoop(File file) {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        List<Entry> batch = new ArrayList<>();
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+            while (true) {
+                batch.add(QUEUE.take());
+                QUEUE.drainTo(batch);
+                for (Entry e : batch) w.write(format(e));
+                long dropped = DROPPED.getAndSet(0);
+                if (dropped > 0) w.write(Instant.now() + " slowlog dropped=" + dropped + "\n");
+                w.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Slow log " + file.getPath() + " stopped: " + e.getMessage());
+        }
+    }
+
+    private static String format(Entry e) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append(Instant.ofEpochMilli(e.at)).append(" slow ").append(e.command);
+        if (e.target != null) sb.append(" target=").append(e.target);
+        sb.append(" user=").append(e.user == null ? "-" : e.user)
+          .append(" peer=").append(e.peer == null ? "-" : e.peer)
+          .append(" status=").append(e.failed ? "ERROR" : "OK")
+          .append(" totalUs=").append(e.totalNanos / 1000);
+        long accounted = 0;
+        for (int i = 0; i < e.stages.length; i++) {
+            sb.append(' ').append(Trace.NAMES[i]).append("Us=").append(e.stages[i] / 1000);
+            accounted += e.stages[i];
+        }
+        // service work and anything not covered by a stage: hashing, index lookups, queueing
+        sb.append(" otherUs=").append(Math.max(0, e.totalNanos - accounted) / 1000).append('\n');
+        return sb.toString();
+    }
+}
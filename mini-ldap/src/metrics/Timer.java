@@ -0,0 +1,48 @@
+package com.minildap.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency histogram (microsecond resolution) plus an error counter for one operation. */
+public final class Timer implements TimerMXBean {
+    private final String name;
+    private final Histogram micros = new Histogram();
+    private final LongAdder errors = new LongAdder();
+
+    Timer(String name) { this.name = name; }
+
+    public String name() { return name; }
+
+    public void record(long nanos) { micros.record(nanos / 1000); }
+
+    public void record(long nanos, boolean failed) {
+        micros.record(nanos / 1000);
+        if (failed) errors.increment();
+    }
+
+    /** Records the time since startNanos (a System.nanoTime() reading) and returns it. */
+    public long since(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        record(nanos);
+        return nanos;
+    }
+
+    @Override public long getCount() { return micros.count(); }
+    @Override public long getErrors() { return errors.sum(); }
+    @Override public double getMeanMicros() { return micros.mean(); }
+    @Override public long getP50Micros() { return micros.percentile(0.50); }
+    @Override public long getP99Micros() { return micros.percentile(0.99); }
+    @Override public long getP999Micros() { return micros.percentile(0.999); }
+    @Override public long getMaxMicros() { return micros.max(); }
+
+    @Override
+    public void reset() {
+        micros.reset();
+        errors.reset();
+    }
+
+    String toJson() {
+        return "{\"count\":" + getCount() + ",\"errors\":" + getErrors()
+                + ",\"meanUs\":" + Math.round(getMeanMicros()) + ",\"p50Us\":" + getP50Micros()
+                + ",\"p99Us\":" + getP99Micros() + ",\"p999Us\":" + getP999Micros() + ",\"maxUs\":" + getMaxMicros() + "}";
+    }
+}
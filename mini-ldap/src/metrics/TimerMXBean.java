@@ -0,0 +1,13 @@
+package com.minildap.metrics;
+
+/** JMX view of a Timer; latencies in microseconds. */
+public interface TimerMXBean {
+    long getCount();
+    long getErrors();
+    double getMeanMicros();
+    long getP50Micros();
+    long getP99Micros();
+    long getP999Micros();
+    long getMaxMicros();
+    void reset();
+}
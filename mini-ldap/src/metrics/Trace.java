@@ -0,0 +1,33 @@
+package com.minildap.metrics;
+
+/**
+ * Per-thread stage clock for the command being executed. The handler resets it when a command
+ * starts and reads it when the command ends; stores, the journal and rendering add the nanoseconds
+ * they spend. One reused array per thread, so the fast path allocates nothing.
+ */
+public final class Trace {
+    public static final int PARSE = 0;
+    public static final int AUTHZ = 1;
+    public static final int LOCK = 2;
+    public static final int PERSIST = 3;
+    public static final int RENDER = 4;
+    /** queueing for and running password hashing on the HashingPool */
+    public static final int HASH = 5;
+
+    static final String[] NAMES = {"parse", "authz", "lock", "persist", "render", "hash"};
+
+    private static final ThreadLocal<long[]> CURRENT = ThreadLocal.withInitial(() -> new long[NAMES.length]);
+
+    private Trace() {}
+
+    /** Clears and returns this thread's stage array. */
+    public static long[] begin() {
+        long[] t = CURRENT.get();
+        for (int i = 0; i < t.length; i++) t[i] = 0;
+        return t;
+    }
+
+    public static void add(int stage, long nanos) {
+        CURRENT.get()[stage] += nanos;
+    }
+}
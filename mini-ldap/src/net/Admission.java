@@ -0,0 +1,164 @@
+package com.minildap.net;
+
+import com.minildap.metrics.Metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overload protection shared by both engines: a cap on open connections, idle and write
+ * timeouts, outbound buffer limits, and token-bucket rate limits per connection and per
+ * authenticated principal. A limit of 0 disables it. Everything rejected is counted in Metrics.
+ * The connection cap and idle timeout are off by default, since the engines are built to hold
+ * large numbers of mostly idle connections; only slow readers are cut off out of the box.
+ *
+ *   minildap.maxConnections   open connections, further accepts get a busy reply and are closed
+ *   minildap.backlog          listen queue length
+ *   minildap.idleTimeoutMs    close connections that sent nothing for this long
+ *   minildap.writeTimeoutMs   close connections that accept no reply bytes for this long
+ *   minildap.maxOutboundKb    nio: close connections with more queued reply data than this
+ *   minildap.connRate/Burst   commands per second per connection, and the bucket size
+ *   minildap.userRate/Burst   commands per second per principal, over all of its connections
+ */
+public final class Admission {
+
+    public static final Admission UNLIMITED = new Admission(0, 50, 0, 0, 0, 0, 0, 0, 0);
+
+    static final String BUSY = "{\"status\":\"ERROR\",\"message\":\"Server busy, too many connections\"}";
+    private static final int MAX_PRINCIPALS = 100_000;
+
+    final int maxConnections;
+    final int backlog;
+    final long idleTimeoutMillis;
+    final long writeTimeoutMillis;
+    final long maxOutboundBytes;
+    private final double connRate, connBurst, userRate, userBurst;
+    private final Semaphore slots;
+    private final Map<String, TokenBucket> principals = new ConcurrentHashMap<>();
+    private final Set<CommandHandler> writers = ConcurrentHashMap.newKeySet();
+    private Thread watchdog;
+
+    public Admission(int maxConnections, int backlog, long idleTimeoutMillis, long writeTimeoutMillis, long maxOutboundBytes,
+                     double connRate, double connBurst, double userRate, double userBurst) {
+        this.maxConnections = maxConnections;
+        this.backlog = backlog;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.connRate = connRate;
+        this.connBurst = connBurst > 0 ? connBurst : connRate;
+        this.userRate = userRate;
+        this.userBurst = userBurst > 0 ? userBurst : userRate;
+        this.slots = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+    }
+
+    public static Admission fromSystemProperties() {
+        return new Admission(
+                Integer.getInteger("minildap.maxConnections", 0),
+                Integer.getInteger("minildap.backlog", 128),
+                Long.getLong("minildap.idleTimeoutMs", 0),
+                Long.getLong("minildap.writeTimeoutMs", 30_000),
+                Long.getLong("minildap.maxOutboundKb", 4096) * 1024,
+                doubleProperty("minildap.connRate"), doubleProperty("minildap.connBurst"),
+                doubleProperty("minildap.userRate"), doubleProperty("minildap.userBurst"));
+    }
+
+    private static double doubleProperty(String name) {
+        String v = System.getProperty(name);
+        return v == null ? 0 : Double.parseDouble(v);
+    }
+
+    /** Takes a connection slot; false (and counted) when the server is full. */
+    boolean admit() {
+        if (slots == null || slots.tryAcquire()) return true;
+        Metrics.REJECTED_CONNECTIONS.incrementAndGet();
+        return false;
+    }
+
+    void release() {
+        if (slots != null) slots.release();
+    }
+
+    /**
+     * Thread engine: a blocked socket write cannot time out by itself, so a watchdog closes the
+     * socket of any handler that has been stuck writing one reply for longer than the write timeout.
+     */
+    void watch(CommandHandler h) {
+        if (writeTimeoutMillis <= 0) return;
+        writers.add(h);
+        synchronized (this) {
+            if (watchdog != null) return;
+            watchdog = new Thread(this::watchWrites, "minildap-write-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    void unwatch(CommandHandler h) {
+        writers.remove(h);
+    }
+
+    private void watchWrites() {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        long tick = Math.max(10, Math.min(1000, writeTimeoutMillis / 4));
+        while (true) {
+            try {
+                Thread.sleep(tick);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (CommandHandler h : writers) {
+                if (h.closeIfWriteStalled(now, timeout)) {
+                    writers.remove(h);
+                    Metrics.SLOW_CONSUMERS.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** A fresh per-connection bucket, or null when connections are not rate limited. */
+    TokenBucket connectionBucket() {
+        return connRate > 0 ? new TokenBucket(connRate, connBurst) : null;
+    }
+
+    /** Whether one more command may run now; user is null before AUTH. */
+    boolean allow(TokenBucket connection, String user) {
+        if (connection != null && !connection.tryAcquire()) return limited();
+        if (user != null && userRate > 0) {
+            if (principals.size() >= MAX_PRINCIPALS) principals.clear();
+            if (!principals.computeIfAbsent(user, u -> new TokenBucket(userRate, userBurst)).tryAcquire()) return limited();
+        }
+        return true;
+    }
+
+    private static boolean limited() {
+        Metrics.RATE_LIMITED.incrementAndGet();
+        return false;
+    }
+
+    static final class TokenBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(double perSecond, double capacity) {
+            this.perNano = perSecond / 1e9;
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - last) * perNano);
+            last = now;
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+    }
+}
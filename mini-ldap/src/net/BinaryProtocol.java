@@ -0,0 +1,209 @@
+package com.minildap.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing, negotiated with "PROTO BINARY" on a text connection.
+ *
+ * frame    = varint(bodyLength) body
+ * request  = opcode:byte varint(requestId) varint(argc) { varint(len) utf8 }*
+ * response = status:byte varint(requestId) varint(len) utf8-json
+ *
+ * Arguments travel as separate fields, so values containing spaces need no quoting
+ * and the server never tokenizes the command text.
+ */
+public final class BinaryProtocol {
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_CLOSE = 2;
+    /** one entry of a streamed listing, more frames with the same request id follow */
+    public static final int STATUS_MORE = 3;
+
+    static final int MAX_FRAME = 1024 * 1024;
+
+    // opcode -> command name, index 0 unused
+    private static final String[] OPS = {
+            null, "AUTH", "LOGOUT", "PING", "EXIT",
+            "ADDUSER", "READUSER", "UPDATEUSER", "DELETEUSER", "LISTUSER",
+            "CREATEGROUP", "DELETEGROUP", "ADDUSERTOGROUP", "REMOVEUSERFROMGROUP", "LISTGROUP",
+            "RESUME", "LISTMEMBERS", "SEARCH", "PREFIX", "STATS", "IMPORT", "EXPORT",
+            "BEGIN", "COMMIT", "ROLLBACK", "WATCH", "REPLICATE"
+    };
+
+    private BinaryProtocol() {}
+
+    public static int opcode(String command) {
+        for (int i = 1; i < OPS.length; i++) if (OPS[i].equalsIgnoreCase(command)) return i;
+        return -1;
+    }
+
+    public static final class Request {
+        public final int opcode;
+        public final int id;
+        /** parts[0] is the command name, like the text protocol after splitting */
+        public final String[] parts;
+
+        Request(int opcode, int id, String[] parts) { this.opcode = opcode; this.id = id; this.parts = parts; }
+    }
+
+    public static final class Response {
+        public final int status;
+        public final int id;
+        public final String body;
+
+        Response(int status, int id, String body) { this.status = status; this.id = id; this.body = body; }
+    }
+
+    // ---- client side ----
+
+    public static void writeRequest(OutputStream out, int opcode, int id, String... args) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        body.write(opcode);
+        writeVarint(body, id);
+        writeVarint(body, args.length);
+        for (String a : args) writeString(body, a);
+        writeVarint(out, body.size());
+        body.writeTo(out);
+    }
+
+    public static Response readResponse(InputStream in) throws IOException {
+        byte[] frame = readFrame(in);
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        int status = b.get() & 0xff;
+        int id = readVarint(b);
+        return new Response(status, id, readString(b));
+    }
+
+    // ---- server side ----
+
+    public static Request readRequest(InputStream in) throws IOException {
+        return decodeRequest(ByteBuffer.wrap(readFrame(in)));
+    }
+
+    /** Decodes one request from a non-blocking read buffer, or returns null if the frame is not complete yet. */
+    static Request tryDecode(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int len = tryReadVarint(in);
+        if (len < 0 || in.remaining() < len) { in.position(start); return null; }
+        checkLength(len);
+        ByteBuffer body = in.slice();
+        body.limit(len);
+        in.position(in.position() + len);
+        return decodeRequest(body);
+    }
+
+    static byte[] encodeResponse(int id, String resp) {
+        int status = CommandHandler.CLOSE.equals(resp) ? STATUS_CLOSE
+                : resp.startsWith("{\"status\":\"ERROR\"") ? STATUS_ERROR
+                : resp.startsWith("{\"status\":\"MORE\"") ? STATUS_MORE : STATUS_OK;
+        ByteArrayOutputStream body = new ByteArrayOutputStream(resp.length() + 8);
+        body.write(status);
+        writeVarint(body, id);
+        writeString(body, resp);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+        writeVarint(frame, body.size());
+        frame.writeBytes(body.toByteArray());
+        return frame.toByteArray();
+    }
+
+    private static Request decodeRequest(ByteBuffer b) throws IOException {
+        if (!b.hasRemaining()) throw new IOException("Empty frame");
+        int op = b.get() & 0xff;
+        int id = readVarint(b);
+        int argc = readVarint(b);
+        if (argc > 64) throw new IOException("Too many arguments: " + argc);
+        String[] parts = new String[argc + 1];
+        parts[0] = op > 0 && op < OPS.length ? OPS[op] : "OP" + op;
+        for (int i = 1; i <= argc; i++) parts[i] = readString(b);
+        return new Request(op, id, parts);
+    }
+
+    // ---- primitives ----
+
+    private static byte[] readFrame(InputStream in) throws IOException {
+        int len = readVarint(in);
+        checkLength(len);
+        byte[] frame = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int n = in.read(frame, off, len - off);
+            if (n < 0) throw new EOFException();
+            off += n;
+        }
+        return frame;
+    }
+
+    // a frame holds at least an opcode or status byte
+    private static void checkLength(int len) throws IOException {
+        if (len <= 0) throw new IOException("Empty frame");
+        if (len > MAX_FRAME) throw new IOException("Frame too large: " + len);
+    }
+
+    static void writeVarint(OutputStream out, int v) {
+        try {
+            while ((v & ~0x7f) != 0) {
+                out.write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return checkVarint(v);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // lengths, counts and ids are never negative; a fifth byte must not reach the sign bit
+    private static int checkVarint(int v) throws IOException {
+        if (v < 0) throw new IOException("Malformed varint");
+        return v;
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int v = tryReadVarint(in);
+        if (v < 0) throw new IOException("Truncated frame");
+        return v;
+    }
+
+    // -1 when the buffer ends inside the varint
+    private static int tryReadVarint(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) return -1;
+            int b = in.get();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return checkVarint(v);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer b) throws IOException {
+        int len = readVarint(b);
+        if (len > b.remaining()) throw new IOException("Truncated frame");
+        String s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+        b.position(b.position() + len);
+        return s;
+    }
+}
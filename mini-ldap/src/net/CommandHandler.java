@@ -1,14 +1,26 @@
 package com.minildap.net;
 
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.SlowLog;
+import com.minildap.metrics.Timer;
+import com.minildap.metrics.Trace;
 import com.minildap.models.Group;
 import com.minildap.models.User;
+import com.minildap.security.Policy;
 import com.minildap.service.*;
+import com.minildap.store.ChangeFeed;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 public class CommandHandler implements Runnable {
 
@@ -17,184 +29,887 @@ public class CommandHandler implements Runnable {
     private final AuthorizationService authzService;
     private final UserService userService;
     private final GroupService groupService;
+    private final SessionService sessionService;
+    private final BulkService bulkService; // null: IMPORT/EXPORT are not offered
+    private final TransactionService transactionService; // null: BEGIN/COMMIT are not offered
+    private final WatchService watchService; // null: WATCH is not offered
+    private String replicaOf; // "host:port" of the primary when this server is a read-only replica
+    private String peer; // remote address, for the slow log
+    private Admission admission = Admission.UNLIMITED;
+    private Admission.TokenBucket bucket;     // this connection's rate limit, null when unlimited
+    private volatile long writingSince;       // thread engine: when the reply being written started, 0 when idle
 
     private String currentUser = null;
     private String currentRole = null;
+    private String currentToken = null;
+    private boolean binary = false;
+    private CompletableFuture<String> deferred; // reply of the last command that returned DEFERRED
+    private Iterator<String> stream;            // reply lines of the last command that returned STREAM
+    private BulkService.Import importing;       // set between IMPORT and its closing "." line
+    private String importError;                 // the import broke, its remaining lines are skipped
+    private List<String> importOutput;
+    private TransactionService.Transaction transaction; // set between BEGIN and COMMIT/ROLLBACK
+    private volatile WatchService.Watch watching;       // the WATCH this connection is streaming
 
     public CommandHandler(Socket socket,
                           AuthService authService,
                           AuthorizationService authzService,
                           UserService userService,
-                          GroupService groupService) {
+                          GroupService groupService,
+                          SessionService sessionService) {
+        this(socket, authService, authzService, userService, groupService, sessionService, null, null, null);
+    }
+
+    public CommandHandler(Socket socket,
+                          AuthService authService,
+                          AuthorizationService authzService,
+                          UserService userService,
+                          GroupService groupService,
+                          SessionService sessionService,
+                          BulkService bulkService,
+                          TransactionService transactionService,
+                          WatchService watchService) {
         this.socket = socket;
         this.authService = authService;
         this.authzService = authzService;
         this.userService = userService;
         this.groupService = groupService;
+        this.sessionService = sessionService;
+        this.bulkService = bulkService;
+        this.transactionService = transactionService;
+        this.watchService = watchService;
+        this.peer = socket == null ? null : String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    // socket-less handler, used by NioServer which owns the channel and only feeds us lines;
+    // such a handler never blocks on password hashing and may answer DEFERRED instead
+    public CommandHandler(AuthService authService,
+                          AuthorizationService authzService,
+                          UserService userService,
+                          GroupService groupService,
+                          SessionService sessionService) {
+        this(null, authService, authzService, userService, groupService, sessionService, null, null, null);
+    }
+
+    public CommandHandler(AuthService authService,
+                          AuthorizationService authzService,
+                          UserService userService,
+                          GroupService groupService,
+                          SessionService sessionService,
+                          BulkService bulkService,
+                          TransactionService transactionService,
+                          WatchService watchService) {
+        this(null, authService, authzService, userService, groupService, sessionService, bulkService, transactionService, watchService);
     }
 
     @Override
     public void run() {
         try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true)
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream raw = new BufferedOutputStream(socket.getOutputStream());
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(raw, "UTF-8"))
         ) {
-            out.println("{\"status\":\"OK\",\"message\":\"MiniLDAP ready\"}");
-            String line;
-            while ((line = in.readLine()) != null) {
-                String resp = handle(line.trim());
-                out.println(resp);
-                if ("__CLOSE__".equals(resp)) break;
+            Metrics.OPEN_CONNECTIONS.incrementAndGet();
+            Metrics.ACCEPTED_CONNECTIONS.incrementAndGet();
+            if (admission.idleTimeoutMillis > 0) socket.setSoTimeout((int) admission.idleTimeoutMillis);
+            admission.watch(this);
+            out.println(GREETING);
+            out.flush();
+            // lines are read byte-wise (no decoder read-ahead) so the stream can switch to binary frames mid-connection
+            ByteArrayOutputStream lineBuf = new ByteArrayOutputStream(128);
+            while (true) {
+                String resp;
+                if (binary) {
+                    BinaryProtocol.Request req = BinaryProtocol.readRequest(in);
+                    resp = execute(req);
+                    writingSince = System.nanoTime();
+                    if (resp == STREAM) {
+                        for (Iterator<String> it = takeStream(); await(it, out, raw); writingSince = System.nanoTime())
+                            raw.write(BinaryProtocol.encodeResponse(req.id, it.next()));
+                    } else {
+                        raw.write(BinaryProtocol.encodeResponse(req.id, resp));
+                    }
+                } else {
+                    String line = readLine(in, lineBuf);
+                    if (line == null) break;
+                    resp = process(line.trim());
+                    writingSince = System.nanoTime();
+                    if (resp == STREAM) {
+                        // a slow reader blocks us in write(), so at most one buffer of the listing is in memory
+                        // the write timeout counts from the last line that went out, not from the start of the listing
+                        for (Iterator<String> it = takeStream(); await(it, out, raw); writingSince = System.nanoTime()) out.println(it.next());
+                    } else {
+                        out.println(resp);
+                    }
+                    out.flush(); // into raw's buffer only
+                }
+                if (CLOSE.equals(resp)) break;
+                // pipelined clients: keep buffering while more commands are already waiting, one flush per batch
+                if (in.available() == 0) raw.flush();
+                writingSince = 0;
             }
+        } catch (SocketTimeoutException e) {
+            Metrics.IDLE_TIMEOUTS.incrementAndGet();
         } catch (IOException e) {
             // connection closed
         } finally {
+            closed();
+            admission.unwatch(this);
+            admission.release();
+            Metrics.OPEN_CONNECTIONS.decrementAndGet();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
+    // a live stream may block in hasNext(): send what it produced so far, and waiting for it is not a stalled write
+    private boolean await(Iterator<String> it, PrintWriter out, OutputStream raw) throws IOException {
+        if (!(it instanceof LiveStream) || ((LiveStream) it).ready()) return it.hasNext();
+        out.flush();
+        raw.flush();
+        writingSince = 0;
+        boolean more = it.hasNext();
+        writingSince = System.nanoTime();
+        return more;
+    }
+
+    private static String readLine(InputStream in, ByteArrayOutputStream buf) throws IOException {
+        buf.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return buf.size() == 0 ? null : buf.toString("UTF-8");
+            buf.write(b);
+        }
+        return buf.toString("UTF-8");
+    }
+
+    // lets NioServer stop decoding after this line until its reply tells whether frames follow
+    static boolean isBinarySwitch(String line) {
+        if (line.startsWith("#")) {
+            int sp = line.indexOf(' ');
+            line = sp < 0 ? "" : line.substring(sp + 1).trim();
+        }
+        String[] parts = tokenize(line);
+        return parts.length >= 2 && "PROTO".equals(parts[0]) && "BINARY".equalsIgnoreCase(parts[1]);
+    }
+
+    static final String GREETING = "{\"status\":\"OK\",\"message\":\"MiniLDAP ready\"}";
+    static final String CLOSE = "__CLOSE__";
+    // NIO only: the reply is not ready yet, takeDeferred() hands out the future that completes with it
+    static final String DEFERRED = "__DEFERRED__";
+    // the reply is several lines, pulled one by one from takeStream() so the engine can apply backpressure
+    static final String STREAM = "__STREAM__";
+    private static final int MAX_PAGE = 10_000;
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    private static final int DEFAULT_PREFIX_LIMIT = 10;
+
     private String okMsg(String msg) { return "{\"status\":\"OK\",\"message\":\""+escape(msg)+"\"}"; }
     private String errMsg(String msg) { return "{\"status\":\"ERROR\",\"message\":\""+escape(msg)+"\"}"; }
 
     private String escape(String s){ return s==null?"":s.replace("\\","\\\\").replace("\"","\\\""); }
 
-    private String handle(String cmd) {
+    // "#<id> <command>" tags a command; the response echoes the id so pipelined clients can match replies
+    String process(String line) {
+        if (importing != null) return importLine(line);
+        if (!line.startsWith("#")) return handle(line);
+        int sp = line.indexOf(' ');
+        String id = sp < 0 ? line.substring(1) : line.substring(1, sp);
+        String resp = handle(sp < 0 ? "" : line.substring(sp + 1).trim());
+        if (resp == DEFERRED) {
+            deferred = deferred.thenApply(r -> tag(id, r));
+            return resp;
+        }
+        if (resp == STREAM) {
+            Iterator<String> lines = stream;
+            LiveStream live = lines instanceof LiveStream ? (LiveStream) lines : null;
+            stream = new LiveStream() {
+                public boolean ready() { return live == null || live.ready(); }
+                public void whenReady(Runnable r) { if (live == null) r.run(); else live.whenReady(r); }
+                public boolean hasNext() { return lines.hasNext(); }
+                public String next() { return tag(id, lines.next()); }
+            };
+            return resp;
+        }
+        return tag(id, resp);
+    }
+
+    private String tag(String id, String resp) {
+        if (CLOSE.equals(resp)) return resp;
+        return "{\"id\":\"" + escape(id) + "\"," + resp.substring(1);
+    }
+
+    void setPeer(String peer) { this.peer = peer; }
+
+    void setReplicaOf(String primary) { this.replicaOf = primary; }
+
+    void setAdmission(Admission admission) {
+        this.admission = admission;
+        this.bucket = admission.connectionBucket();
+    }
+
+    // the write timeout watchdog closes the socket under a reply that has been blocked too long
+    boolean closeIfWriteStalled(long now, long timeoutNanos) {
+        long since = writingSince;
+        if (since == 0 || now - since < timeoutNanos) return false;
+        try { socket.close(); } catch (IOException ignored) {}
+        return true;
+    }
+
+    /**
+     * A STREAM reply without a natural end (WATCH): hasNext() may block until there is something to
+     * send, so an engine that must not block checks ready() first and otherwise parks on whenReady().
+     */
+    interface LiveStream extends Iterator<String> {
+        /** Whether hasNext() would answer right away. */
+        boolean ready();
+
+        /** Runs r once, possibly right away, as soon as ready() may have become true. */
+        void whenReady(Runnable r);
+    }
+
+    // the connection is gone: stop feeding a WATCH that nobody reads
+    void closed() {
+        WatchService.Watch w = watching;
+        if (w != null) w.close();
+    }
+
+    // whether PROTO BINARY was accepted: later input on this connection is frames
+    boolean isBinary() {
+        return binary;
+    }
+
+    Iterator<String> takeStream() {
+        Iterator<String> s = stream;
+        stream = null;
+        return s;
+    }
+
+    CompletableFuture<String> takeDeferred() {
+        CompletableFuture<String> f = deferred;
+        deferred = null;
+        return f;
+    }
+
+    String handle(String cmd) {
         if (cmd.isEmpty()) return errMsg("Empty command");
-        String[] parts = cmd.split("\\s+");
-        String op = parts[0].toUpperCase();
+        long t0 = System.nanoTime();
+        long[] trace = Trace.begin();
+        String[] parts = tokenize(cmd);
+        trace[Trace.PARSE] = System.nanoTime() - t0;
+        Command c = command(parts[0], 0, parts[0].length());
+        if (c == null) return errMsg("Unknown command: " + parts[0].toUpperCase());
+        return dispatch(c, parts, t0, trace);
+    }
+
+    // binary frames carry the opcode, so they skip the name lookup entirely
+    String execute(BinaryProtocol.Request req) {
+        Command c = req.opcode < BY_OPCODE.length ? BY_OPCODE[req.opcode] : null;
+        if (c == null) return errMsg("Unknown command: " + req.parts[0]);
+        return dispatch(c, req.parts, System.nanoTime(), Trace.begin());
+    }
 
+    private String dispatch(Command c, String[] parts, long t0, long[] trace) {
+        String resp;
         try {
-            switch (op) {
-                case "AUTH": {
-                    if (parts.length < 3) return errMsg("Usage: AUTH <username> <password>");
-                    User u = authService.authenticate(parts[1], parts[2]);
-                    currentUser = u.getUsername();
-                    currentRole = u.getRole();
-                    List<String> groups = authzService.getUserGroups(currentUser);
-                    String gjson = groups.stream().map(g -> "\""+escape(g)+"\"").collect(Collectors.joining(","));
-                    return "{\"status\":\"OK\",\"role\":\""+escape(currentRole)+"\",\"groups\":["+gjson+"],\"message\":\"Welcome "+escape(currentUser)+"\"}";
-                }
-                case "LOGOUT": {
-                    currentUser = null; currentRole = null;
-                    return okMsg("Logged out");
-                }
-                case "PING": {
-                    return "{\"status\":\"OK\",\"time\":\""+ LocalDateTime.now() +"\"}";
-                }
-                case "EXIT": {
-                    return "__CLOSE__";
-                }
+            if (!admission.allow(bucket, currentUser)) throw new Exception("Rate limit exceeded, slow down");
+            if (replicaOf != null && c.write) throw new Exception("Read-only replica: send writes to the primary at " + replicaOf);
+            if (c.access == Access.POLICY) {
+                if (currentUser == null) throw new Exception("Authenticate first");
+                long a0 = System.nanoTime();
+                boolean allowed = authzService.canExecute(currentUser, currentRole, c.op, parts.length > 1 ? parts[1] : null);
+                trace[Trace.AUTHZ] = System.nanoTime() - a0;
+                if (!allowed) throw new Exception("Permission denied");
+            }
+            // inside BEGIN ... COMMIT mutations are authorized now and applied at COMMIT
+            resp = transaction != null && c.transactional ? queue(parts) : c.action.run(this, parts);
+        } catch (Exception e) {
+            resp = errMsg(e.getMessage());
+        }
+        // deferred replies are timed when they complete; streams only up to the first line being ready
+        if (resp == DEFERRED) {
+            long[] sofar = trace.clone(); // the completing thread has its own trace
+            String user = currentUser;
+            deferred = deferred.whenComplete((r, e) -> finish(c, parts, user, t0, sofar, e != null || isError(r)));
+        } else {
+            finish(c, parts, currentUser, t0, trace, isError(resp));
+        }
+        return resp;
+    }
 
-                // ---- User ops ----
-                case "ADDUSER": {
-                    requireAdminOr(op);
-                    if (parts.length < 5) return errMsg("Usage: ADDUSER <username> <password> <role> [email] [fullName]");
-                    String username = parts[1], password = parts[2], role = parts[3];
-                    String email = parts.length >= 5 ? parts[4] : "";
-                    String fullName = parts.length >= 6 ? joinFrom(parts,5) : "";
-                    userService.createUser(username, password, email, fullName, role);
-                    return okMsg("User added");
-                }
-                case "READUSER": {
-                    requireAuth(op);
-                    if (parts.length < 2) return errMsg("Usage: READUSER <username>");
-                    String username = parts[1];
-                    // users can read themselves, dev/admin can read anyone
-                    if (!username.equals(currentUser) && !"admin".equalsIgnoreCase(currentRole) && !"developer".equalsIgnoreCase(currentRole))
-                        return errMsg("Permission denied");
-                    User u = userService.readUser(username);
-                    return "{\"status\":\"OK\",\"user\":"+u.toJsonPublic()+"}";
-                }
-                case "UPDATEUSER": {
-                    requireAuth(op);
-                    if (parts.length < 4) return errMsg("Usage: UPDATEUSER <username> <email> <fullName>");
-                    String username = parts[1];
-                    String email = parts[2];
-                    String fullName = joinFrom(parts,3);
-                    // users can update themselves; dev/admin can update anyone
-                    if (!username.equals(currentUser) && !"admin".equalsIgnoreCase(currentRole) && !"developer".equalsIgnoreCase(currentRole))
-                        return errMsg("Permission denied");
-                    userService.updateUser(username, email, fullName);
-                    return okMsg("User updated");
-                }
-                case "DELETEUSER": {
-                    requireAdminOr(op);
-                    if (parts.length < 2) return errMsg("Usage: DELETEUSER <username>");
-                    userService.deleteUser(parts[1]);
-                    return okMsg("User deleted");
-                }
-                case "LISTUSER": {
-                    requireAuth(op);
-                    List<User> users = userService.listAllUsers();
-                    String body = users.stream().map(User::toJsonPublic).collect(Collectors.joining(","));
-                    return "{\"status\":\"OK\",\"users\":["+body+"]}";
-                }
+    private void finish(Command c, String[] parts, String user, long t0, long[] trace, boolean failed) {
+        long total = System.nanoTime() - t0;
+        c.timer.record(total, failed);
+        if (SlowLog.isSlow(total)) {
+            // only the first argument, which names the target; never passwords or field values
+            SlowLog.record(c.name, parts.length > 1 ? parts[1] : null, user, peer, failed, total, trace);
+        }
+    }
 
-                // ---- Group ops ----
-                case "CREATEGROUP": {
-                    requireAdminOr(op);
-                    if (parts.length < 2) return errMsg("Usage: CREATEGROUP <groupname>");
-                    groupService.createGroup(parts[1]);
-                    return okMsg("Group created");
-                }
-                case "DELETEGROUP": {
-                    requireAdminOr(op);
-                    if (parts.length < 2) return errMsg("Usage: DELETEGROUP <groupname>");
-                    groupService.deleteGroup(parts[1]);
-                    return okMsg("Group deleted");
-                }
-                case "ADDUSERTOGROUP": {
-                    requireAdminOr(op);
-                    if (parts.length < 3) return errMsg("Usage: ADDUSERTOGROUP <username> <group>");
-                    groupService.addMember(parts[2], parts[1]); // note: <username> <group>
-                    return okMsg("Member added");
-                }
-                case "REMOVEUSERFROMGROUP": {
-                    requireAdminOr(op);
-                    if (parts.length < 3) return errMsg("Usage: REMOVEUSERFROMGROUP <username> <group>");
-                    groupService.removeMember(parts[2], parts[1]);
-                    return okMsg("Member removed");
-                }
-                case "LISTGROUP": {
-                    requireAuth(op);
-                    List<Group> gs = groupService.listGroups();
-                    String body = gs.stream().map(Group::toJson).collect(Collectors.joining(","));
-                    return "{\"status\":\"OK\",\"groups\":["+body+"]}";
-                }
+    private static boolean isError(String resp) {
+        return resp == null || resp.startsWith("{\"status\":\"ERROR\"");
+    }
 
-                default:
-                    return errMsg("Unknown command: " + op);
+    // ---- dispatch table ----
+
+    // POLICY: authenticated, then whatever the compiled RBAC policy allows for the command
+    private enum Access { ANYONE, POLICY }
+
+    private interface Action { String run(CommandHandler h, String[] parts) throws Exception; }
+
+    private static final class Command {
+        final String name;
+        final Access access;
+        final int op; // Policy bit, -1 when the policy does not govern the command
+        final Action action;
+        final Timer timer;
+        final boolean transactional; // queued instead of run between BEGIN and COMMIT
+        final boolean write;         // changes data, refused by a replica
+
+        Command(String name, Access access, Action action) {
+            this.name = name;
+            this.access = access;
+            this.op = Policy.operation(name);
+            // otherwise nothing in policy.conf could grant or refuse it
+            if (access == Access.POLICY && op < 0) throw new IllegalStateException(name + " is missing from Policy.OPERATIONS");
+            this.action = action;
+            this.timer = Metrics.command(name);
+            this.transactional = TransactionService.isTransactional(name);
+            this.write = transactional || name.equals("IMPORT") || name.equals("BEGIN");
+        }
+    }
+
+    private static final Command[] COMMANDS = {
+            new Command("AUTH", Access.ANYONE, CommandHandler::auth),
+            new Command("RESUME", Access.ANYONE, CommandHandler::resume),
+            new Command("LOGOUT", Access.ANYONE, CommandHandler::logout),
+            new Command("PING", Access.ANYONE, (h, p) -> "{\"status\":\"OK\",\"time\":\"" + LocalDateTime.now() + "\"}"),
+            new Command("EXIT", Access.ANYONE, (h, p) -> CLOSE),
+            new Command("PROTO", Access.ANYONE, CommandHandler::proto),
+            new Command("ADDUSER", Access.POLICY, CommandHandler::addUser),
+            new Command("READUSER", Access.POLICY, CommandHandler::readUser),
+            new Command("UPDATEUSER", Access.POLICY, CommandHandler::updateUser),
+            new Command("DELETEUSER", Access.POLICY, CommandHandler::deleteUser),
+            new Command("LISTUSER", Access.POLICY, CommandHandler::listUser),
+            new Command("CREATEGROUP", Access.POLICY, CommandHandler::createGroup),
+            new Command("DELETEGROUP", Access.POLICY, CommandHandler::deleteGroup),
+            new Command("ADDUSERTOGROUP", Access.POLICY, CommandHandler::addUserToGroup),
+            new Command("REMOVEUSERFROMGROUP", Access.POLICY, CommandHandler::removeUserFromGroup),
+            new Command("LISTGROUP", Access.POLICY, CommandHandler::listGroup),
+            new Command("LISTMEMBERS", Access.POLICY, CommandHandler::listMembers),
+            new Command("PREFIX", Access.POLICY, CommandHandler::prefix),
+            new Command("SEARCH", Access.POLICY, CommandHandler::search),
+            new Command("STATS", Access.POLICY, CommandHandler::stats),
+            new Command("IMPORT", Access.POLICY, CommandHandler::startImport),
+            new Command("EXPORT", Access.POLICY, CommandHandler::export),
+            new Command("BEGIN", Access.ANYONE, CommandHandler::begin),
+            new Command("COMMIT", Access.ANYONE, CommandHandler::commit),
+            new Command("ROLLBACK", Access.ANYONE, CommandHandler::rollback),
+            new Command("WATCH", Access.POLICY, CommandHandler::watch),
+            new Command("REPLICATE", Access.POLICY, CommandHandler::replicate),
+    };
+
+    private static final Command[] BY_OPCODE = new Command[256];
+    static {
+        for (Command c : COMMANDS) {
+            int op = BinaryProtocol.opcode(c.name);
+            if (op > 0) BY_OPCODE[op] = c;
+        }
+    }
+
+    // case-insensitive match of s[from, to) against the table, without copying or upper-casing it
+    private static Command command(String s, int from, int to) {
+        int len = to - from;
+        for (Command c : COMMANDS) {
+            if (c.name.length() == len && c.name.regionMatches(true, 0, s, from, len)) return c;
+        }
+        return null;
+    }
+
+    /**
+     * Splits on runs of whitespace with one pass to count and one to cut, instead of a regex split.
+     * A known command name is replaced by the table's own string so it is never copied.
+     */
+    static String[] tokenize(String line) {
+        int n = 0, len = line.length();
+        for (int i = 0; i < len; ) {
+            while (i < len && Character.isWhitespace(line.charAt(i))) i++;
+            if (i == len) break;
+            n++;
+            while (i < len && !Character.isWhitespace(line.charAt(i))) i++;
+        }
+        String[] parts = new String[Math.max(n, 1)];
+        if (n == 0) { parts[0] = ""; return parts; }
+        int k = 0;
+        for (int i = 0; i < len; ) {
+            while (i < len && Character.isWhitespace(line.charAt(i))) i++;
+            if (i == len) break;
+            int start = i;
+            while (i < len && !Character.isWhitespace(line.charAt(i))) i++;
+            if (k == 0) {
+                Command c = command(line, start, i);
+                parts[k++] = c != null ? c.name : line.substring(start, i);
+            } else {
+                parts[k++] = line.substring(start, i);
             }
-        } catch (Exception e) {
-            return errMsg(e.getMessage());
         }
+        return parts;
     }
 
-    private void requireAuth(String op) throws Exception {
-        if (currentUser == null) throw new Exception("Authenticate first");
-        if (!new AuthorizationService(groupService==null?null:null).canExecute(currentUser, currentRole, op)) {
-            // we call our existing canExecute logic directly:
-            if (!canExecuteSimple(currentRole, op)) throw new Exception("Permission denied");
+    // ---- session ----
+
+    private String auth(String[] parts) throws Exception {
+        if (parts.length < 3) return errMsg("Usage: AUTH <username> <password>");
+        transaction = null; // its steps were authorized for whoever was logged in before
+        if (socket == null) {
+            // NIO worker: don't park it while the password hash runs on the hashing pool
+            deferred = authService.authenticateAsync(parts[1], parts[2])
+                    .handle((u, e) -> e == null ? authenticated(u) : errMsg(rootCause(e).getMessage()));
+            return DEFERRED;
+        }
+        return authenticated(authService.authenticate(parts[1], parts[2]));
+    }
+
+    private String resume(String[] parts) {
+        if (parts.length < 2) return errMsg("Usage: RESUME <token>");
+        SessionService.Session s = sessionService.resume(parts[1]);
+        if (s == null) return errMsg("Invalid or expired session");
+        transaction = null;
+        // the user may have been deleted or had its role changed since the token was issued
+        User u = userService.findUser(s.username);
+        if (u == null || !s.role.equals(u.getRole())) {
+            sessionService.revoke(s.token);
+            return errMsg("Invalid or expired session");
+        }
+        currentUser = s.username;
+        currentRole = s.role;
+        currentToken = s.token;
+        return sessionReply("Resumed " + currentUser);
+    }
+
+    private String logout(String[] parts) {
+        if (currentToken != null) sessionService.revoke(currentToken);
+        currentUser = null; currentRole = null; currentToken = null;
+        transaction = null;
+        return okMsg("Logged out");
+    }
+
+    private String proto(String[] parts) {
+        if (parts.length < 2 || !"BINARY".equalsIgnoreCase(parts[1])) return errMsg("Usage: PROTO BINARY");
+        binary = true;
+        return okMsg("Binary protocol enabled");
+    }
+
+    // ---- User ops ----
+
+    private String addUser(String[] parts) throws Exception {
+        if (parts.length < 5) return errMsg("Usage: ADDUSER <username> <password> <role> [email] [fullName]");
+        String username = parts[1], password = parts[2], role = parts[3];
+        String email = parts.length >= 5 ? parts[4] : "";
+        String fullName = parts.length >= 6 ? joinFrom(parts,5) : "";
+        userService.createUser(username, password, email, fullName, role);
+        return okMsg("User added");
+    }
+
+    private String readUser(String[] parts) throws Exception {
+        if (parts.length < 2) return errMsg("Usage: READUSER <username>");
+        User u = userService.readUser(parts[1]);
+        return "{\"status\":\"OK\",\"user\":"+u.toJsonPublic()+"}";
+    }
+
+    private String updateUser(String[] parts) throws Exception {
+        if (parts.length < 4) return errMsg("Usage: UPDATEUSER <username> <email> <fullName>");
+        String username = parts[1];
+        String email = parts[2];
+        String fullName = joinFrom(parts,3);
+        userService.updateUser(username, email, fullName);
+        return okMsg("User updated");
+    }
+
+    private String deleteUser(String[] parts) throws Exception {
+        if (parts.length < 2) return errMsg("Usage: DELETEUSER <username>");
+        userService.deleteUser(parts[1]);
+        return okMsg("User deleted");
+    }
+
+    private String listUser(String[] parts) throws Exception {
+        // LISTUSER | LISTUSER <limit> [cursor] | LISTUSER STREAM [cursor]
+        if (parts.length >= 2) {
+            String cursor = parts.length >= 3 ? parts[2] : null;
+            if ("STREAM".equalsIgnoreCase(parts[1]))
+                return stream("user", userService.iterateUsers(cursor), User::toJsonPublic);
+            return page("users", userService.iterateUsers(cursor), pageSize(parts[1]), User::toJsonPublic, User::getUsername);
+        }
+        List<User> users = userService.listAllUsers();
+        String body = joinJson(users, User::toJsonPublic);
+        return "{\"status\":\"OK\",\"users\":["+body+"]}";
+    }
+
+    // ---- Group ops ----
+
+    private String createGroup(String[] parts) throws Exception {
+        if (parts.length < 2) return errMsg("Usage: CREATEGROUP <groupname>");
+        groupService.createGroup(parts[1]);
+        return okMsg("Group created");
+    }
+
+    private String deleteGroup(String[] parts) throws Exception {
+        if (parts.length < 2) return errMsg("Usage: DELETEGROUP <groupname>");
+        groupService.deleteGroup(parts[1]);
+        return okMsg("Group deleted");
+    }
+
+    private String addUserToGroup(String[] parts) throws Exception {
+        if (parts.length < 3) return errMsg("Usage: ADDUSERTOGROUP <username> <group>");
+        groupService.addMember(parts[2], parts[1]); // note: <username> <group>
+        return okMsg("Member added");
+    }
+
+    private String removeUserFromGroup(String[] parts) throws Exception {
+        if (parts.length < 3) return errMsg("Usage: REMOVEUSERFROMGROUP <username> <group>");
+        groupService.removeMember(parts[2], parts[1]);
+        return okMsg("Member removed");
+    }
+
+    private String listGroup(String[] parts) throws Exception {
+        // LISTGROUP | LISTGROUP <limit> [cursor] | LISTGROUP STREAM [cursor]
+        if (parts.length >= 2) {
+            String cursor = parts.length >= 3 ? parts[2] : null;
+            if ("STREAM".equalsIgnoreCase(parts[1]))
+                return stream("group", groupService.iterateGroups(cursor), Group::toJson);
+            return page("groups", groupService.iterateGroups(cursor), pageSize(parts[1]), Group::toJson, Group::getName);
+        }
+        List<Group> gs = groupService.listGroups();
+        String body = joinJson(gs, Group::toJson);
+        return "{\"status\":\"OK\",\"groups\":["+body+"]}";
+    }
+
+    private String listMembers(String[] parts) throws Exception {
+        if (parts.length < 2) return errMsg("Usage: LISTMEMBERS <group> [<limit> [cursor] | STREAM [cursor]]");
+        String cursor = parts.length >= 4 ? parts[3] : null;
+        Iterator<String> members = groupService.iterateMembers(parts[1], cursor);
+        if (parts.length >= 3 && "STREAM".equalsIgnoreCase(parts[2]))
+            return stream("member", members, m -> "\"" + escape(m) + "\"");
+        int limit = parts.length >= 3 ? pageSize(parts[2]) : 1000;
+        return page("members", members, limit, m -> "\"" + escape(m) + "\"", m -> m);
+    }
+
+    // ---- Bulk ----
+
+    private String startImport(String[] parts) throws Exception {
+        // IMPORT <CSV|LDIF> [UPSERT] [BATCH <n>], then the records, then a line holding a single "."
+        if (parts.length < 2) return errMsg("Usage: IMPORT <CSV|LDIF> [UPSERT] [BATCH <n>]");
+        if (bulkService == null) return errMsg("IMPORT is not available on this server");
+        if (binary) return errMsg("IMPORT needs the text protocol");
+        BulkService.Format format = BulkService.Format.parse(parts[1]);
+        boolean upsert = false;
+        int batch = BulkService.DEFAULT_BATCH;
+        for (int i = 2; i < parts.length; i++) {
+            if ("UPSERT".equalsIgnoreCase(parts[i])) upsert = true;
+            else if ("BATCH".equalsIgnoreCase(parts[i]) && i + 1 < parts.length) batch = pageSize(parts[++i]);
+            else return errMsg("Unknown IMPORT option: " + parts[i]);
+        }
+        importError = null;
+        importing = bulkService.startImport(format, upsert, batch, new BulkService.Listener() {
+            public void error(long line, String message) {
+                importOutput.add("{\"status\":\"MORE\",\"line\":" + line + ",\"error\":\"" + escape(message) + "\"}");
+            }
+
+            public void batch(BulkService.Import p) {
+                importOutput.add("{\"status\":\"MORE\",\"progress\":" + importCounts(p) + "}");
+            }
+        });
+        return okMsg("Send " + format + " records, end with a line holding a single '.'");
+    }
+
+    // one record line: usually no reply at all, a MORE line per failed record and per applied batch
+    private String importLine(String line) {
+        importOutput = new ArrayList<>(1);
+        if (line.equals(".")) {
+            BulkService.Import imp = importing;
+            importing = null;
+            if (importError == null) {
+                try {
+                    imp.finish();
+                } catch (Exception e) {
+                    importError = e.getMessage();
+                }
+            }
+            importOutput.add(importError != null ? errMsg("Import stopped: " + importError)
+                    : "{\"status\":\"OK\",\"import\":" + importCounts(imp) + "}");
+        } else if (importError == null) {
+            try {
+                importing.accept(line);
+            } catch (Exception e) {
+                // batches already applied stay; the rest of the input is read and dropped
+                importError = e.getMessage();
+            }
         }
+        stream = importOutput.isEmpty() ? Collections.emptyIterator() : importOutput.iterator();
+        return STREAM;
     }
 
-    private void requireAdminOr(String op) throws Exception {
+    private static String importCounts(BulkService.Import p) {
+        return "{\"lines\":" + p.lines() + ",\"added\":" + p.added() + ",\"updated\":" + p.updated()
+                + ",\"failed\":" + p.failed() + ",\"groupsCreated\":" + p.groupsCreated() + ",\"batches\":" + p.batches() + "}";
+    }
+
+    private String export(String[] parts) throws Exception {
+        // EXPORT <CSV|LDIF> [HASHES]: one MORE line per output line, then {"status":"OK","count":<lines>}
+        if (parts.length < 2) return errMsg("Usage: EXPORT <CSV|LDIF> [HASHES]");
+        if (bulkService == null) return errMsg("EXPORT is not available on this server");
+        boolean hashes = parts.length >= 3 && "HASHES".equalsIgnoreCase(parts[2]);
+        return stream("line", bulkService.export(BulkService.Format.parse(parts[1]), hashes), l -> "\"" + escape(l) + "\"");
+    }
+
+    // ---- Transactions ----
+
+    private String begin(String[] parts) throws Exception {
         if (currentUser == null) throw new Exception("Authenticate first");
-        if (!"admin".equalsIgnoreCase(currentRole)) throw new Exception("Permission denied");
+        if (transactionService == null) return errMsg("Transactions are not available on this server");
+        if (transaction != null) return errMsg("Transaction already open");
+        transaction = transactionService.begin();
+        return okMsg("Transaction started, mutations are queued until COMMIT");
+    }
+
+    private String queue(String[] parts) throws Exception {
+        transaction.add(parts);
+        return "{\"status\":\"OK\",\"queued\":" + transaction.size() + "}";
     }
 
-    // mirror of AuthorizationService.canExecute to avoid re-instantiation
-    private boolean canExecuteSimple(String role, String op) {
-        if ("admin".equalsIgnoreCase(role)) return true;
-        switch (op) {
-            case "LISTUSER":
-            case "READUSER":
-            case "LISTGROUP":
-            case "UPDATEUSER":
+    private String commit(String[] parts) throws Exception {
+        if (transaction == null) return errMsg("No transaction open");
+        TransactionService.Transaction tx = transaction;
+        transaction = null;
+        try {
+            return "{\"status\":\"OK\",\"message\":\"Committed\",\"applied\":" + tx.commit() + "}";
+        } catch (Exception e) {
+            return errMsg("Rolled back: " + e.getMessage());
+        }
+    }
+
+    private String rollback(String[] parts) {
+        if (transaction == null) return errMsg("No transaction open");
+        int dropped = transaction.size();
+        transaction = null;
+        return "{\"status\":\"OK\",\"message\":\"Rolled back\",\"discarded\":" + dropped + "}";
+    }
+
+    // ---- Change notification ----
+
+    private String watch(String[] parts) throws Exception {
+        // WATCH [FROM <seq>] [USER <name>] [GROUP <name>] [KIND <user|group|member>]: a MORE line per change,
+        // a heartbeat carrying the current seq when quiet; the connection streams until it closes
+        if (watchService == null) return errMsg("WATCH is not available on this server");
+        WatchService.Watch w = watchService.watch(parts, 1);
+        watching = w;
+        stream = new LiveStream() {
+            boolean done;
+
+            public boolean ready() { return done || w.ready(); }
+
+            public void whenReady(Runnable r) {
+                if (done) r.run();
+                else w.whenReady(r);
+            }
+
+            public boolean hasNext() {
+                if (done) return false;
+                w.hasNext(); // an event, a heartbeat or the end: each makes one more line
                 return true;
-            default:
-                return false;
+            }
+
+            public String next() {
+                if (w.hasNext()) return "{\"status\":\"MORE\",\"event\":" + w.next().toJson() + "}";
+                done = true;
+                watching = null;
+                return w.failure() != null ? errMsg(w.failure()) : okMsg("Watch closed");
+            }
+        };
+        return STREAM;
+    }
+
+    private String replicate(String[] parts) throws Exception {
+        // REPLICATE [FROM <seq>]: the mutation stream a replica applies. Unless it can resume after seq,
+        // {"reset":<seq>} and a line per user and group come first; then a line per mutation, and a
+        // heartbeat with the current seq when quiet. "record" always comes last in a line.
+        if (watchService == null) return errMsg("REPLICATE is not available on this server");
+        if (replicaOf != null) return errMsg("This server is a replica; replicate from the primary at " + replicaOf);
+        Long after = null;
+        if (parts.length >= 2) {
+            if (parts.length < 3 || !"FROM".equalsIgnoreCase(parts[1])) return errMsg("Usage: REPLICATE [FROM <seq>]");
+            try {
+                after = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return errMsg("Bad sequence number: " + parts[2]);
+            }
+        }
+        WatchService.Replication r = watchService.replicate(after);
+        WatchService.Watch w = r.watch;
+        Iterator<String> image = r.image == null ? Collections.emptyIterator() : r.image.records();
+        watching = w;
+        stream = new LiveStream() {
+            String reset = r.image == null ? null : "{\"status\":\"MORE\",\"reset\":" + r.image.seq + "}";
+            boolean done;
+
+            // the image is already in memory, only the events after it may have to be waited for
+            private boolean imaging() { return reset != null || image.hasNext(); }
+
+            public boolean ready() { return done || imaging() || w.ready(); }
+
+            public void whenReady(Runnable run) {
+                if (done || imaging()) run.run();
+                else w.whenReady(run);
+            }
+
+            public boolean hasNext() {
+                if (done) return false;
+                if (!imaging()) w.hasNext();
+                return true;
+            }
+
+            public String next() {
+                if (reset != null) {
+                    String s = reset;
+                    reset = null;
+                    return s;
+                }
+                if (image.hasNext()) return "{\"status\":\"MORE\",\"record\":\"" + escape(image.next()) + "\"}";
+                if (w.hasNext()) {
+                    ChangeFeed.Event e = w.next();
+                    StringBuilder sb = new StringBuilder(128).append("{\"status\":\"MORE\",\"seq\":").append(e.seq)
+                            .append(",\"head\":").append(watchService.currentSeq());
+                    if (e.record() != null)
+                        sb.append(",\"ts\":").append(e.time).append(",\"record\":\"").append(escape(e.record())).append('"');
+                    return sb.append('}').toString();
+                }
+                done = true;
+                watching = null;
+                return w.failure() != null ? errMsg(w.failure()) : okMsg("Replication closed");
+            }
+        };
+        return STREAM;
+    }
+
+    // ---- Queries ----
+
+    private String stats(String[] parts) {
+        if (parts.length >= 2 && "RESET".equalsIgnoreCase(parts[1])) {
+            Metrics.resetTimers();
+            return okMsg("Timers reset");
         }
+        return Metrics.toJson();
+    }
+
+    private String prefix(String[] parts) throws Exception {
+        if (parts.length < 3) return errMsg("Usage: PREFIX <USER|GROUP> <prefix> [limit]");
+        int limit = parts.length >= 4 ? pageSize(parts[3]) : DEFAULT_PREFIX_LIMIT;
+        List<String> names;
+        if ("USER".equalsIgnoreCase(parts[1])) names = userService.usernamesWithPrefix(parts[2], limit);
+        else if ("GROUP".equalsIgnoreCase(parts[1])) names = groupService.groupNamesWithPrefix(parts[2], limit);
+        else return errMsg("Unknown kind: " + parts[1] + " (USER or GROUP)");
+        String body = joinJson(names, n -> "\""+escape(n)+"\"");
+        return "{\"status\":\"OK\",\"matches\":["+body+"]}";
+    }
+
+    private String search(String[] parts) throws Exception {
+        // SEARCH <filter> [limit]; the filter may contain spaces, it ends at its balancing ')'
+        String text = joinFrom(parts, 1).trim();
+        int end = filterEnd(text);
+        if (end < 0) return errMsg("Usage: SEARCH <filter> [limit], e.g. SEARCH (&(role=user)(mail=*@corp.com)) 50");
+        String rest = text.substring(end).trim();
+        int limit = rest.isEmpty() ? DEFAULT_SEARCH_LIMIT : pageSize(rest);
+        UserService.SearchResult r = userService.search(text.substring(0, end), limit);
+        String body = joinJson(r.users, User::toJsonPublic);
+        return "{\"status\":\"OK\",\"users\":["+body+"],\"count\":"+r.users.size()+",\"plan\":\""+escape(r.plan)+"\"}";
+    }
+
+    private <T> String page(String key, Iterator<T> it, int limit, Function<T, String> json, Function<T, String> cursorOf) {
+        long r0 = System.nanoTime();
+        StringBuilder sb = new StringBuilder("{\"status\":\"OK\",\"").append(key).append("\":[");
+        String last = null;
+        for (int n = 0; n < limit && it.hasNext(); n++) {
+            T t = it.next();
+            if (n > 0) sb.append(',');
+            sb.append(json.apply(t));
+            last = cursorOf.apply(t);
+        }
+        sb.append(']');
+        // pass "next" back as the cursor to get the following page
+        if (it.hasNext()) sb.append(",\"next\":\"").append(escape(last)).append('"');
+        String out = sb.append('}').toString();
+        Trace.add(Trace.RENDER, System.nanoTime() - r0);
+        return out;
+    }
+
+    // comma-joined JSON of a result list, counted as render time
+    private static <T> String joinJson(List<T> items, Function<T, String> json) {
+        long r0 = System.nanoTime();
+        StringBuilder sb = new StringBuilder(items.size() * 64);
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(json.apply(items.get(i)));
+        }
+        Trace.add(Trace.RENDER, System.nanoTime() - r0);
+        return sb.toString();
+    }
+
+    // one {"status":"MORE",...} line per entry, rendered only when the engine asks for it, then a final OK line
+    private <T> String stream(String key, Iterator<T> it, Function<T, String> json) {
+        stream = new Iterator<String>() {
+            int count;
+            boolean done;
+
+            public boolean hasNext() { return !done; }
+
+            public String next() {
+                if (it.hasNext()) {
+                    count++;
+                    return "{\"status\":\"MORE\",\"" + key + "\":" + json.apply(it.next()) + "}";
+                }
+                done = true;
+                return "{\"status\":\"OK\",\"count\":" + count + "}";
+            }
+        };
+        return STREAM;
+    }
+
+    // index just past the ')' closing the leading filter, -1 if the text does not start with a balanced one
+    private static int filterEnd(String text) {
+        if (!text.startsWith("(")) return -1;
+        int depth = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '(') depth++;
+            else if (c == ')' && --depth == 0) return i + 1;
+        }
+        return -1;
+    }
+
+    private static int pageSize(String s) throws Exception {
+        try {
+            int n = Integer.parseInt(s);
+            if (n <= 0) throw new NumberFormatException();
+            return Math.min(n, MAX_PAGE);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid page size: " + s);
+        }
+    }
+
+    private String authenticated(User u) {
+        currentUser = u.getUsername();
+        currentRole = u.getRole();
+        currentToken = sessionService.issue(currentUser, currentRole);
+        return sessionReply("Welcome " + currentUser);
+    }
+
+    private String sessionReply(String message) {
+        List<String> groups = authzService.getUserGroups(currentUser);
+        String gjson = joinJson(groups, g -> "\""+escape(g)+"\"");
+        return "{\"status\":\"OK\",\"role\":\""+escape(currentRole)+"\",\"groups\":["+gjson+"],\"token\":\""+currentToken+"\",\"message\":\""+escape(message)+"\"}";
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        return e;
     }
 
     private static String joinFrom(String[] arr, int start) {
@@ -1,55 +1,166 @@
 package com.minildap.net;
 
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.SlowLog;
 import com.minildap.models.Group;
 import com.minildap.models.User;
+import com.minildap.security.HashingPool;
 import com.minildap.security.PasswordUtils;
 import com.minildap.service.*;
+import com.minildap.store.ChangeFeed;
 import com.minildap.store.GroupStore;
+import com.minildap.store.Journal;
+import com.minildap.store.Snapshotter;
 import com.minildap.store.UserStore;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DirectoryServer {
 
     public static void main(String[] args) throws Exception {
-        int port = 5050;
-        File userDb = new File("data/users.db");
-        File groupDb = new File("data/groups.db");
+        int port = Integer.getInteger("minildap.port", 5050);
+        File dataDir = new File(System.getProperty("minildap.dataDir", "data"));
+        // host:port of a primary to follow: this server then keeps an in-memory copy and only answers reads
+        String replicaOf = System.getProperty("minildap.replicaOf");
+        // thread: platform thread per connection, virtual: virtual thread per connection, nio: selector + worker pool
+        String engine = System.getProperty("minildap.engine", "thread").toLowerCase();
+        int workers = Integer.getInteger("minildap.workers", Runtime.getRuntime().availableProcessors());
+        File userDb = new File(dataDir, "users.db");
+        File groupDb = new File(dataDir, "groups.db");
+        // perop | batch (group commit) | periodic | none (rewrite the .db files on every mutation)
+        String durability = System.getProperty("minildap.durability", "batch");
 
-        UserStore userStore = new UserStore(userDb);
-        GroupStore groupStore = new GroupStore(groupDb);
+        Journal journal = null;
+        if (replicaOf == null && !"none".equalsIgnoreCase(durability)) {
+            journal = new Journal(new File(dataDir, "directory.journal"), Journal.parseDurability(durability),
+                    Long.getLong("minildap.fsyncIntervalMs", 100));
+            journal.open();
+        }
+        UserStore userStore = new UserStore(userDb, journal);
+        GroupStore groupStore = new GroupStore(groupDb, journal);
 
-        userStore.load();
-        groupStore.load();
+        if (replicaOf == null) {
+            userStore.load();
+            groupStore.load();
+        }
 
-        // Bootstrap default admin if not present
-        if (userStore.findByUsername("admin") == null) {
-            String hash = PasswordUtils.hashSSHA("admin123");
+        // Bootstrap default admin if not present; a replica gets its admin from the primary
+        if (replicaOf == null && userStore.findByUsername("admin") == null) {
+            String hash = PasswordUtils.hash("admin123");
             userStore.addUser(new User("admin", hash, "admin@example.com", "System Admin", "admin"));
             userStore.save();
         }
-        if (groupStore.findByName("admins") == null) {
+        if (replicaOf == null && groupStore.findByName("admins") == null) {
             Group g = new Group("admins");
             g.addMember("admin");
             groupStore.addGroup(g);
             groupStore.save();
         }
 
-        AuthService authService = new AuthService(userStore);
-        AuthorizationService authzService = new AuthorizationService(groupStore);
-        UserService userService = new UserService(userStore);
+        // WATCH: every mutation from here on is numbered and kept in a ring of this many events for resuming
+        ChangeFeed changeFeed = new ChangeFeed(journal, Integer.getInteger("minildap.watchBuffer", 65_536));
+        userStore.setChangeFeed(changeFeed);
+        groupStore.setChangeFeed(changeFeed);
+
+        if (journal != null) {
+            new Snapshotter(userStore, groupStore, journal,
+                    Long.getLong("minildap.snapshotIntervalMs", 60_000),
+                    Long.getLong("minildap.snapshotMaxRecords", 100_000)).start();
+        }
+
+        // password work gets its own bounded pool so verifies cannot take over connection threads
+        HashingPool hashingPool = new HashingPool(
+                Integer.getInteger("minildap.hashThreads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("minildap.hashQueue", 256));
+
+        SessionService sessionService = new SessionService(Long.getLong("minildap.sessionTtlSec", 3600) * 1000);
+        sessionService.startSweeper();
+
+        if (replicaOf != null) {
+            // log in like any client; the primary's policy must allow this user REPLICATE
+            Replicator replicator = new Replicator(replicaOf,
+                    System.getProperty("minildap.replicaUser", "admin"), System.getProperty("minildap.replicaPassword", "admin123"),
+                    userStore, groupStore, changeFeed, sessionService, Long.getLong("minildap.replicaTimeoutMs", 10_000));
+            replicator.start();
+            // an empty replica would answer "User not found" to everyone, so wait for the data before listening
+            if (!replicator.awaitSynced(Long.getLong("minildap.replicaSyncWaitMs", 60_000)))
+                System.out.println("No image from " + replicaOf + " yet, serving anyway; data appears once the primary answers");
+        }
+
+        // a replica must not rewrite hashes on login, its store only changes through replication
+        AuthService authService = new AuthService(userStore, hashingPool, replicaOf == null);
+        AuthorizationService authzService = new AuthorizationService(groupStore,
+                new File(System.getProperty("minildap.policyFile", new File(dataDir, "policy.conf").getPath())));
+        authzService.startReloader(Long.getLong("minildap.policyReloadMs", 2000));
+        UserService userService = new UserService(userStore, hashingPool, sessionService);
         GroupService groupService = new GroupService(groupStore);
+        BulkService bulkService = new BulkService(userStore, groupStore, hashingPool);
+        TransactionService transactionService = new TransactionService(userStore, groupStore, hashingPool, sessionService);
+        WatchService watchService = new WatchService(changeFeed, userStore, groupStore,
+                Long.getLong("minildap.watchHeartbeatMs", 15_000), Long.getLong("minildap.replicaHeartbeatMs", 1000));
 
-        System.out.println("MiniLDAP Server listening on port " + port);
-        try (ServerSocket server = new ServerSocket(port)) {
+        Metrics.registerMBeans();
+        // commands at or above this many milliseconds are logged with their stage breakdown; -1 disables
+        SlowLog.start(new File(System.getProperty("minildap.slowLog", new File(dataDir, "slow.log").getPath())), Long.getLong("minildap.slowMs", 100));
+        // connection cap, timeouts, outbound limits and rate limits, see Admission for the properties
+        Admission admission = Admission.fromSystemProperties();
+        System.out.println("MiniLDAP Server listening on port " + port + " (engine: " + engine + ")"
+                + (replicaOf != null ? ", read-only replica of " + replicaOf : ""));
+        if ("nio".equals(engine)) {
+            new NioServer(port, workers, admission, () -> {
+                CommandHandler h = new CommandHandler(authService, authzService, userService, groupService, sessionService, bulkService, transactionService, watchService);
+                h.setReplicaOf(replicaOf);
+                return h;
+            }).serve();
+            return;
+        }
+
+        ExecutorService pool = "virtual".equals(engine) ? newVirtualThreadExecutor() : null;
+        try (ServerSocket server = new ServerSocket(port, admission.backlog)) {
             while (true) {
                 Socket client = server.accept();
-                System.out.println("Client connected: " + client.getRemoteSocketAddress());
-                Thread t = new Thread(new CommandHandler(client, authService, authzService, userService, groupService));
-                t.start();
+                if (!admission.admit()) {
+                    refuse(client);
+                    continue;
+                }
+                CommandHandler handler = new CommandHandler(client, authService, authzService, userService, groupService, sessionService, bulkService, transactionService, watchService);
+                handler.setAdmission(admission);
+                handler.setReplicaOf(replicaOf);
+                if (pool != null) {
+                    pool.execute(handler);
+                } else {
+                    System.out.println("Client connected: " + client.getRemoteSocketAddress());
+                    new Thread(handler).start();
+                }
             }
         }
     }
+
+    // best effort: one line telling the client why, without letting it hold up the accept loop
+    private static void refuse(Socket client) {
+        try {
+            client.getOutputStream().write((Admission.BUSY + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {
+        } finally {
+            try { client.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // looked up reflectively so the server still compiles and runs on JDKs without Loom (< 21)
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available on this JVM, falling back to a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
 }
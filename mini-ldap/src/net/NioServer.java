@@ -0,0 +1,449 @@
+package com.minildap.net;
+
+import com.minildap.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Selector based reactor: one thread owns every socket and does all reads and writes,
+ * complete lines are handed to a small fixed worker pool that runs CommandHandler.handle.
+ * An idle connection costs a SelectionKey and a few small objects, no thread and no stack.
+ */
+public class NioServer {
+
+    private static final int MAX_LINE = 64 * 1024;
+    // streamed listings stop rendering above HIGH_WATER queued bytes and resume once below LOW_WATER
+    private static final int HIGH_WATER = 256 * 1024;
+    private static final int LOW_WATER = 64 * 1024;
+    // a connection stops being read while this many commands wait for a worker, or while HIGH_WATER
+    // reply bytes wait for the client, so a client that pipelines faster than it reads is pushed back by TCP
+    private static final int MAX_PENDING_LINES = 1024;
+
+    // how often idle and stalled connections are looked for
+    private static final long SWEEP_MILLIS = 1000;
+
+    private final int port;
+    private final Admission admission;
+    private final Supplier<CommandHandler> handlerFactory;
+    private final ExecutorService workers;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pendingReads = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(16 * 1024);
+    private Selector selector;
+
+    public NioServer(int port, int workerThreads, Supplier<CommandHandler> handlerFactory) {
+        this(port, workerThreads, Admission.UNLIMITED, handlerFactory);
+    }
+
+    public NioServer(int port, int workerThreads, Admission admission, Supplier<CommandHandler> handlerFactory) {
+        this.port = port;
+        this.admission = admission;
+        this.handlerFactory = handlerFactory;
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "minildap-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void serve() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), admission.backlog);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            long lastSweep = System.nanoTime();
+            while (true) {
+                selector.select(SWEEP_MILLIS);
+                if (System.nanoTime() - lastSweep >= SWEEP_MILLIS * 1_000_000) {
+                    lastSweep = System.nanoTime();
+                    sweep(lastSweep);
+                }
+                Connection c;
+                while ((c = pendingWrites.poll()) != null) flush(c);
+                while ((c = pendingReads.poll()) != null) resumeReading(c);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept(server);
+                        else {
+                            if (key.isReadable()) read((Connection) key.attachment());
+                            if (key.isValid() && key.isWritable()) flush((Connection) key.attachment());
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // whatever one connection sends, it only ever takes down itself
+                        Object att = key.attachment();
+                        if (att instanceof Connection) ((Connection) att).close();
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            if (!admission.admit()) {
+                refuse(ch);
+                continue;
+            }
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Connection c = new Connection(ch, handlerFactory.get());
+            c.handler.setPeer(String.valueOf(ch.getRemoteAddress()));
+            c.handler.setAdmission(admission);
+            Metrics.OPEN_CONNECTIONS.incrementAndGet();
+            Metrics.ACCEPTED_CONNECTIONS.incrementAndGet();
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            c.enqueue(CommandHandler.GREETING);
+            flush(c);
+        }
+    }
+
+    // still blocking from accept(): one short write into an empty socket buffer, then close
+    private void refuse(SocketChannel ch) {
+        try {
+            ch.write(ByteBuffer.wrap((Admission.BUSY + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ignored) {
+        } finally {
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // selector thread: close connections that sent nothing for the idle timeout, or that have
+    // not taken a byte of their queued replies for the write timeout
+    private void sweep(long now) {
+        long idle = admission.idleTimeoutMillis * 1_000_000;
+        long write = admission.writeTimeoutMillis * 1_000_000;
+        if (idle <= 0 && write <= 0) return;
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) continue;
+            Connection c = (Connection) key.attachment();
+            if (c.queuedBytes.get() > 0) {
+                if (write > 0 && now - c.lastWrite > write) {
+                    Metrics.SLOW_CONSUMERS.incrementAndGet();
+                    c.close();
+                }
+            } else if (idle > 0 && !c.scheduled && now - c.lastRead > idle) {
+                Metrics.IDLE_TIMEOUTS.incrementAndGet();
+                c.close();
+            }
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        readBuf.clear();
+        int n = c.channel.read(readBuf);
+        if (n < 0) { c.close(); return; }
+        c.lastRead = System.nanoTime();
+        readBuf.flip();
+        if (parse(c, readBuf)) c.schedule();
+        if (c.readOps() == 0) c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    // selector thread: splits input into lines or frames. Whatever follows a PROTO BINARY line is held
+    // back until that command has run, since only its reply tells whether frames or more text come next
+    private boolean parse(Connection c, ByteBuffer in) throws IOException {
+        boolean gotLine = false;
+        while (in.hasRemaining()) {
+            if (c.held != null) {
+                c.hold(in);
+                break;
+            }
+            if (c.binary) {
+                gotLine |= c.decodeFrames(in);
+                break;
+            }
+            byte b = in.get();
+            if (b == '\n') {
+                if (c.completeLine()) c.hold(in);
+                gotLine = true;
+            } else {
+                if (c.partial == null) c.partial = new ByteArrayOutputStream(128);
+                if (c.partial.size() >= MAX_LINE) throw new IOException("Line too long");
+                c.partial.write(b);
+            }
+        }
+        return gotLine;
+    }
+
+    // selector thread only
+    private void flush(Connection c) {
+        if (!c.channel.isOpen()) return;
+        try {
+            ByteBuffer buf;
+            while ((buf = c.outbound.peek()) != null) {
+                if (c.channel.write(buf) > 0) c.lastWrite = System.nanoTime();
+                if (buf.hasRemaining()) {
+                    c.key.interestOps(c.readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                c.outbound.poll();
+                if (c.queuedBytes.addAndGet(-buf.limit()) < LOW_WATER && c.streamParked.compareAndSet(true, false)) {
+                    workers.execute(c::drain);
+                }
+            }
+            if (c.closing) { c.close(); return; }
+            c.key.interestOps(c.readOps());
+        } catch (IOException | CancelledKeyException e) {
+            c.close();
+        }
+    }
+
+    // selector thread: a worker took enough queued lines off a connection that was no longer read,
+    // or ran the PROTO BINARY command the rest of its input was held back for
+    private void resumeReading(Connection c) {
+        if (!c.channel.isOpen()) return;
+        try {
+            if (c.held != null && !c.switching) {
+                ByteBuffer rest = c.held;
+                c.held = null;
+                // written by the worker before it cleared 'switching', so visible here
+                c.binary = c.handler.isBinary();
+                if (parse(c, rest)) c.schedule();
+            }
+            c.key.interestOps(c.readOps() | (c.key.interestOps() & SelectionKey.OP_WRITE));
+        } catch (IOException | RuntimeException e) {
+            flush(c); // the PROTO reply, queued before the held input was decoded
+            c.close();
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final CommandHandler handler;
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        final AtomicLong queuedBytes = new AtomicLong();
+        // String for text lines, BinaryProtocol.Request once the connection switched to frames
+        final ArrayDeque<Object> lines = new ArrayDeque<>();
+        SelectionKey key;
+        ByteArrayOutputStream partial;
+        ByteBuffer frames;
+        boolean binary;
+        // selector thread: input read after a PROTO BINARY line, decoded once that command has run
+        ByteBuffer held;
+        // such a line is queued and has not run yet; no more input is decoded or read meanwhile
+        volatile boolean switching;
+        volatile boolean scheduled;
+        volatile boolean closing;
+        // last bytes read from the client, and last reply bytes it accepted (or when replies started queueing)
+        volatile long lastRead = System.nanoTime();
+        volatile long lastWrite = System.nanoTime();
+        private boolean closed;
+        // a listing still being streamed, and the request it answers; only touched by the draining worker
+        Iterator<String> stream;
+        Object streamItem;
+        // whoever clears it (flush, or the parking worker itself) runs the next drain
+        final AtomicBoolean streamParked = new AtomicBoolean();
+
+        Connection(SocketChannel channel, CommandHandler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        // true when the line asks for binary frames, which the rest of the input must wait for
+        boolean completeLine() {
+            String line = partial == null ? "" : new String(partial.toByteArray(), StandardCharsets.UTF_8);
+            partial = null;
+            line = line.trim();
+            boolean sw = CommandHandler.isBinarySwitch(line);
+            synchronized (this) {
+                if (sw) switching = true;
+                lines.add(line);
+            }
+            return sw;
+        }
+
+        void hold(ByteBuffer src) {
+            ByteBuffer b = ByteBuffer.allocate((held == null ? 0 : held.remaining()) + src.remaining());
+            if (held != null) b.put(held);
+            b.put(src).flip();
+            held = b;
+        }
+
+        boolean decodeFrames(ByteBuffer src) throws IOException {
+            if (frames == null) frames = ByteBuffer.allocate(Math.max(4096, src.remaining()));
+            if (frames.remaining() < src.remaining()) {
+                if (frames.position() + src.remaining() > BinaryProtocol.MAX_FRAME + 16) throw new IOException("Frame too large");
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(frames.capacity() * 2, frames.position() + src.remaining()));
+                frames.flip();
+                bigger.put(frames);
+                frames = bigger;
+            }
+            frames.put(src);
+            frames.flip();
+            boolean got = false;
+            BinaryProtocol.Request req;
+            while ((req = BinaryProtocol.tryDecode(frames)) != null) {
+                synchronized (this) { lines.add(req); }
+                got = true;
+            }
+            frames.compact();
+            return got;
+        }
+
+        synchronized int readOps() {
+            return !switching && lines.size() < MAX_PENDING_LINES && queuedBytes.get() < HIGH_WATER ? SelectionKey.OP_READ : 0;
+        }
+
+        // lines of one connection run one at a time and in order, on whichever worker is free
+        void schedule() {
+            synchronized (this) {
+                if (scheduled || lines.isEmpty()) return;
+                scheduled = true;
+            }
+            workers.execute(this::drain);
+        }
+
+        // every response produced by one drain is coalesced into a single buffer and a single write
+        private void drain() {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream(256);
+            if (stream != null && !pumpStream(batch)) return;
+            while (true) {
+                Object item;
+                boolean resume, decides;
+                synchronized (this) {
+                    item = lines.poll();
+                    if (item == null || closing) { scheduled = false; break; }
+                    // commands without a reply (IMPORT records) never reach flush(), which would otherwise turn reading back on
+                    resume = lines.size() == MAX_PENDING_LINES - 1;
+                    // nothing is queued behind a PROTO BINARY line until it has run
+                    decides = switching && lines.isEmpty();
+                }
+                if (resume) wantRead();
+                String resp = item instanceof BinaryProtocol.Request
+                        ? handler.execute((BinaryProtocol.Request) item)
+                        : handler.process((String) item);
+                if (decides) {
+                    // the reply leaves before the input held behind it is decoded, which may close the connection
+                    boolean plain = resp != CommandHandler.DEFERRED && resp != CommandHandler.STREAM;
+                    if (plain) {
+                        encode(batch, item, resp);
+                        send(batch);
+                        batch = new ByteArrayOutputStream(256);
+                    }
+                    switching = false;
+                    wantRead();
+                    if (plain) continue;
+                }
+                if (resp == CommandHandler.DEFERRED) {
+                    // keep 'scheduled' set so later commands wait; the reply resumes the drain in order
+                    send(batch);
+                    handler.takeDeferred().thenAccept(r -> {
+                        ByteArrayOutputStream one = new ByteArrayOutputStream(r.length() + 8);
+                        encode(one, item, r);
+                        send(one);
+                        workers.execute(this::drain);
+                    });
+                    return;
+                }
+                if (resp == CommandHandler.STREAM) {
+                    stream = handler.takeStream();
+                    streamItem = item;
+                    if (!pumpStream(batch)) return;
+                    continue;
+                }
+                encode(batch, item, resp);
+                if (batch.size() >= HIGH_WATER) {
+                    send(batch);
+                    batch = new ByteArrayOutputStream(256);
+                }
+            }
+            send(batch);
+        }
+
+        // renders stream lines until done (true) or until the client falls behind (false: parked, resumed by flush)
+        // or a live stream has nothing ready (false: parked, resumed by the stream)
+        private boolean pumpStream(ByteArrayOutputStream batch) {
+            while (true) {
+                if (stream instanceof CommandHandler.LiveStream && !((CommandHandler.LiveStream) stream).ready()) {
+                    // a WATCH with nothing to say: no worker waits for it, the next change or heartbeat resumes the drain
+                    send(batch);
+                    ((CommandHandler.LiveStream) stream).whenReady(() -> workers.execute(this::drain));
+                    return false;
+                }
+                if (!stream.hasNext()) break;
+                if (queuedBytes.get() + batch.size() >= HIGH_WATER) {
+                    send(batch);
+                    batch.reset();
+                    streamParked.set(true);
+                    // flush() may have drained below LOW_WATER before it could see the flag
+                    if (queuedBytes.get() < LOW_WATER && streamParked.compareAndSet(true, false)) continue;
+                    return false;
+                }
+                encode(batch, streamItem, stream.next());
+            }
+            stream = null;
+            streamItem = null;
+            return true;
+        }
+
+        // has the selector thread look at reading (and held input) again
+        private void wantRead() {
+            pendingReads.add(this);
+            selector.wakeup();
+        }
+
+        private void encode(ByteArrayOutputStream out, Object item, String resp) {
+            if (item instanceof BinaryProtocol.Request) out.writeBytes(BinaryProtocol.encodeResponse(((BinaryProtocol.Request) item).id, resp));
+            else out.writeBytes((resp + "\n").getBytes(StandardCharsets.UTF_8));
+            if (CommandHandler.CLOSE.equals(resp)) closing = true;
+        }
+
+        private void send(ByteArrayOutputStream batch) {
+            if (batch.size() == 0) return;
+            if (admission.maxOutboundBytes > 0 && queuedBytes.get() > admission.maxOutboundBytes) {
+                // pipelining faster than it reads: drop the connection rather than buffer without bound
+                Metrics.SLOW_CONSUMERS.incrementAndGet();
+                close();
+                return;
+            }
+            if (queuedBytes.getAndAdd(batch.size()) == 0) lastWrite = System.nanoTime();
+            outbound.add(ByteBuffer.wrap(batch.toByteArray()));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void enqueue(String resp) {
+            byte[] bytes = (resp + "\n").getBytes(StandardCharsets.UTF_8);
+            queuedBytes.addAndGet(bytes.length);
+            outbound.add(ByteBuffer.wrap(bytes));
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            admission.release();
+            Metrics.OPEN_CONNECTIONS.decrementAndGet();
+            handler.closed();
+            closing = true;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.minildap.net;
+
+import com.minildap.metrics.Metrics;
+import com.minildap.models.Group;
+import com.minildap.models.User;
+import com.minildap.service.SessionService;
+import com.minildap.store.ChangeFeed;
+import com.minildap.store.GroupStore;
+import com.minildap.store.UserStore;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replica side of replication: follows the primary's REPLICATE stream over an ordinary client
+ * connection and applies every record to the local stores, which nothing else writes to on a
+ * replica. The change feed is kept on the primary's numbering, so WATCH on a replica reports the
+ * same sequence numbers, and a reconnect resumes right after the last record applied. When the
+ * primary cannot resume from there it sends a full image instead, which replaces the local data.
+ */
+public class Replicator {
+    private static final String MORE = "{\"status\":\"MORE\"";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long MAX_BACKOFF_MS = 10_000;
+
+    private final String primary, host;
+    private final int port;
+    private final String user, password;
+    private final UserStore userStore;
+    private final GroupStore groupStore;
+    private final ChangeFeed feed;
+    private final SessionService sessionService;
+    private final int readTimeoutMillis;
+    private final CountDownLatch synced = new CountDownLatch(1);
+    private long applied = -1; // replicator thread only; -1 until the first image is loaded
+    private String lastProblem;
+
+    /** readTimeoutMillis should be a few times the primary's replica heartbeat: a quiet link is a dead link. */
+    public Replicator(String primary, String user, String password, UserStore userStore, GroupStore groupStore,
+                      ChangeFeed feed, SessionService sessionService, long readTimeoutMillis) {
+        int colon = primary.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Primary must be host:port, got " + primary);
+        this.primary = primary;
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.user = user;
+        this.password = password;
+        this.userStore = userStore;
+        this.groupStore = groupStore;
+        this.feed = feed;
+        this.sessionService = sessionService;
+        this.readTimeoutMillis = (int) readTimeoutMillis;
+    }
+
+    public void start() {
+        Metrics.REPLICA_OF = primary;
+        Thread t = new Thread(this::run, "minildap-replicator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Waits for the first image to be loaded; false if that did not happen within timeoutMillis. */
+    public boolean awaitSynced(long timeoutMillis) throws InterruptedException {
+        return synced.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void run() {
+        long backoff = 500;
+        while (true) {
+            long before = applied;
+            try {
+                follow();
+            } catch (IOException | RuntimeException e) {
+                String problem = e.getMessage();
+                // a primary that stays down is reported once, not on every retry
+                if (!String.valueOf(problem).equals(lastProblem)) System.out.println("Replication from " + primary + ": " + problem);
+                lastProblem = problem;
+            }
+            Metrics.REPLICA_CONNECTED = false;
+            if (applied != before) backoff = 500;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+
+    // returns only by throwing: the stream has no end while both sides are up
+    private void follow() throws IOException {
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            s.setSoTimeout(readTimeoutMillis);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+            in.readLine(); // greeting
+            out.println("AUTH " + user + " " + password);
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("{\"status\":\"OK\"")) throw new IOException("login as " + user + " failed: " + reply);
+            out.println(applied < 0 ? "REPLICATE" : "REPLICATE FROM " + applied);
+            Metrics.REPLICA_CONNECTED = true;
+            lastProblem = null;
+            System.out.println("Replicating from " + primary + (applied < 0 ? "" : " after seq " + applied));
+
+            Set<String> users = null, groups = null; // names in the image being loaded, null outside one
+            long imageSeq = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith(MORE)) throw new IOException("primary ended replication: " + line);
+                int cut = line.indexOf(",\"record\":\"");
+                String head = cut < 0 ? line : line.substring(0, cut);
+                String record = cut < 0 ? null : unescape(line.substring(cut + 11, line.length() - 2));
+                long reset = number(head, "\"reset\":");
+                if (reset >= 0) {
+                    feed.beginResync();
+                    users = new HashSet<>();
+                    groups = new HashSet<>();
+                    imageSeq = reset;
+                    continue;
+                }
+                long seq = number(head, "\"seq\":");
+                if (seq < 0) {
+                    if (users == null || record == null) throw new IOException("unexpected line: " + line);
+                    loadImageRecord(record, users, groups);
+                    continue;
+                }
+                if (users != null) {
+                    finishImage(imageSeq, users, groups);
+                    users = groups = null;
+                }
+                if (record != null) {
+                    feed.expect(seq);
+                    apply(record);
+                    Metrics.REPLICA_LAG_MS.set(Math.max(0, System.currentTimeMillis() - number(head, "\"ts\":")));
+                }
+                // a heartbeat's seq is the position everything before has been sent up to
+                applied = seq;
+                long primarySeq = number(head, "\"head\":");
+                Metrics.REPLICA_APPLIED_SEQ.set(seq);
+                Metrics.REPLICA_PRIMARY_SEQ.set(primarySeq);
+                if (record == null && seq >= primarySeq) Metrics.REPLICA_LAG_MS.set(0);
+            }
+            throw new IOException("primary closed the connection");
+        }
+    }
+
+    private void loadImageRecord(String tagged, Set<String> users, Set<String> groups) {
+        apply(tagged);
+        String csv = tagged.substring(tagged.indexOf(" PUT ") + 5);
+        int comma = csv.indexOf(',');
+        String name = comma < 0 ? csv : csv.substring(0, comma);
+        (tagged.startsWith("U ") ? users : groups).add(name);
+    }
+
+    // whatever the image did not mention was deleted on the primary while we could not follow
+    private void finishImage(long seq, Set<String> users, Set<String> groups) {
+        for (User u : userStore.getAllUsers()) {
+            if (users.contains(u.getUsername())) continue;
+            userStore.removeUser(u.getUsername());
+            sessionService.revokeUser(u.getUsername());
+        }
+        for (Group g : groupStore.getAllGroups()) {
+            if (!groups.contains(g.getName())) groupStore.removeGroup(g.getName());
+        }
+        feed.endResync(seq);
+        applied = seq;
+        Metrics.REPLICA_APPLIED_SEQ.set(seq);
+        System.out.println("Loaded image from " + primary + ": " + users.size() + " users, " + groups.size() + " groups at seq " + seq);
+        synced.countDown();
+    }
+
+    private void apply(String tagged) {
+        int sp = tagged.indexOf(' ');
+        String record = tagged.substring(sp + 1);
+        if (tagged.startsWith("U ")) {
+            userStore.applyReplicated(record);
+            if (record.startsWith("DEL ")) sessionService.revokeUser(record.substring(4));
+        } else if (tagged.startsWith("G ")) {
+            groupStore.applyReplicated(record);
+        }
+    }
+
+    // our own server's JSON with "record" cut off beforehand, so a key lookup is enough
+    private static long number(String head, String key) {
+        int i = head.indexOf(key);
+        if (i < 0) return -1;
+        int from = i + key.length(), to = from;
+        while (to < head.length() && Character.isDigit(head.charAt(to))) to++;
+        return Long.parseLong(head.substring(from, to));
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) c = s.charAt(++i);
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,299 @@
+package com.minildap.search;
+
+import com.minildap.models.User;
+import com.minildap.store.UserIndex;
+import com.minildap.store.UserStore;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * LDAP-style search filter (RFC 4515 subset) over User attributes:
+ *
+ *   (&amp;(role=developer)(email=*@corp.com))   (|(uid=ad*)(cn=*nguyen*))   (!(role=admin))   (mail=*)
+ *
+ * Attributes: username/uid, email/mail, fullName/cn, role. Matching is case-insensitive,
+ * '*' is a wildcard, and \XX hex escapes are accepted in values.
+ */
+public abstract class Filter {
+
+    public abstract boolean matches(User u);
+
+    /**
+     * How this node could be answered from an index, or null when it cannot be (needs a scan).
+     * The candidate set is a superset of the matches; callers re-check with matches().
+     */
+    abstract Candidates candidates(UserStore store);
+
+    /** An index access path: its estimated size and a way to materialize it. */
+    static final class Candidates {
+        final long estimate;
+        final String plan;
+        final Supplier<Set<String>> fetch;
+
+        Candidates(long estimate, String plan, Supplier<Set<String>> fetch) {
+            this.estimate = estimate;
+            this.plan = plan;
+            this.fetch = fetch;
+        }
+    }
+
+    // sub-map sizes are O(n) on skip lists, so estimates stop counting here
+    static final long ESTIMATE_CAP = 10_000;
+
+    static long countUpTo(Iterable<?> it) {
+        long n = 0;
+        for (Iterator<?> i = it.iterator(); i.hasNext() && n < ESTIMATE_CAP; i.next()) n++;
+        return n;
+    }
+
+    // ---- nodes ----
+
+    static final class And extends Filter {
+        final List<Filter> children;
+
+        And(List<Filter> children) { this.children = children; }
+
+        public boolean matches(User u) {
+            for (Filter f : children) if (!f.matches(u)) return false;
+            return true;
+        }
+
+        // drive from the most selective indexed child, the others are applied as a post-filter
+        Candidates candidates(UserStore store) {
+            Candidates best = null;
+            for (Filter f : children) {
+                Candidates c = f.candidates(store);
+                if (c != null && (best == null || c.estimate < best.estimate)) best = c;
+            }
+            return best;
+        }
+    }
+
+    static final class Or extends Filter {
+        final List<Filter> children;
+
+        Or(List<Filter> children) { this.children = children; }
+
+        public boolean matches(User u) {
+            for (Filter f : children) if (f.matches(u)) return true;
+            return false;
+        }
+
+        // usable only if every branch is indexed
+        Candidates candidates(UserStore store) {
+            List<Candidates> parts = new ArrayList<>();
+            long total = 0;
+            for (Filter f : children) {
+                Candidates c = f.candidates(store);
+                if (c == null) return null;
+                parts.add(c);
+                total += c.estimate;
+            }
+            StringJoiner plan = new StringJoiner(" | ", "union(", ")");
+            for (Candidates c : parts) plan.add(c.plan);
+            return new Candidates(total, plan.toString(), () -> {
+                Set<String> all = new HashSet<>();
+                for (Candidates c : parts) all.addAll(c.fetch.get());
+                return all;
+            });
+        }
+    }
+
+    static final class Not extends Filter {
+        final Filter child;
+
+        Not(Filter child) { this.child = child; }
+
+        public boolean matches(User u) { return !child.matches(u); }
+
+        Candidates candidates(UserStore store) { return null; }
+    }
+
+    /** attr=value, attr=* (presence) or attr=initial*any*...*final */
+    static final class Match extends Filter {
+        final String attr;
+        final String initial;      // null: starts with '*'
+        final List<String> any;    // middle fragments
+        final String fin;          // null: ends with '*'
+        final boolean exact;       // no wildcard at all
+
+        Match(String attr, String initial, List<String> any, String fin, boolean exact) {
+            this.attr = attr;
+            this.initial = initial;
+            this.any = any;
+            this.fin = fin;
+            this.exact = exact;
+        }
+
+        public boolean matches(User u) {
+            String v = attr.equals("username") ? u.getUsername() : UserIndex.key(value(u));
+            if (exact) return v.equals(initial);
+            int pos = 0;
+            if (initial != null) {
+                if (!v.startsWith(initial)) return false;
+                pos = initial.length();
+            }
+            for (String a : any) {
+                int i = v.indexOf(a, pos);
+                if (i < 0) return false;
+                pos = i + a.length();
+            }
+            return fin == null || (v.length() - fin.length() >= pos && v.endsWith(fin));
+        }
+
+        private String value(User u) {
+            switch (attr) {
+                case "username": return u.getUsername();
+                case "email": return u.getEmail();
+                case "fullname": return u.getFullName();
+                default: return u.getRole();
+            }
+        }
+
+        Candidates candidates(UserStore store) {
+            UserIndex idx = store.getIndex();
+            boolean presence = !exact && initial == null && fin == null && any.isEmpty();
+            if (presence) return null;
+            switch (attr) {
+                case "username":
+                    // usernames are case-sensitive keys; only an exact-case prefix can use the primary map
+                    if (initial == null) return null;
+                    NavigableSet<String> names = store.usernamesWithPrefix(initial);
+                    return new Candidates(countUpTo(names), "username-prefix", () -> names);
+                case "role":
+                    if (!exact) return null;
+                    Set<String> r = idx.role(initial);
+                    return new Candidates(r.size(), "role", () -> r);
+                case "email":
+                    if (exact) return exactly(idx.email(initial), "email");
+                    if (initial != null) return range(idx.emailPrefix(initial), "email-prefix");
+                    if (fin != null) return range(idx.emailSuffix(fin), "email-suffix");
+                    return null;
+                case "fullname":
+                    if (exact) return exactly(idx.fullName(initial), "fullName");
+                    if (initial != null) return range(idx.fullNamePrefix(initial), "fullName-prefix");
+                    String longest = longestFragment();
+                    if (longest == null || longest.length() < 3) return null;
+                    return new Candidates(idx.estimateContains(longest), "fullName-trigram", () -> idx.fullNameContains(longest));
+                default:
+                    return null;
+            }
+        }
+
+        private String longestFragment() {
+            String best = fin;
+            for (String a : any) if (best == null || a.length() > best.length()) best = a;
+            return best;
+        }
+
+        private static Candidates exactly(Set<String> s, String plan) {
+            return new Candidates(s.size(), plan, () -> s);
+        }
+
+        // the estimate counts keys, not postings, and stops at ESTIMATE_CAP: enough to rank access paths
+        private static Candidates range(NavigableMap<String, Set<String>> m, String plan) {
+            return new Candidates(countUpTo(m.keySet()), plan, () -> {
+                Set<String> out = new HashSet<>();
+                for (Set<String> s : m.values()) out.addAll(s);
+                return out;
+            });
+        }
+    }
+
+    // ---- parsing ----
+
+    public static Filter parse(String text) {
+        Parser p = new Parser(text.trim());
+        Filter f = p.filter();
+        if (p.pos != p.s.length()) throw new IllegalArgumentException("Unexpected text after filter at " + p.pos);
+        return f;
+    }
+
+    private static final class Parser {
+        final String s;
+        int pos;
+        String attr; // attribute of the item being parsed
+
+        Parser(String s) { this.s = s; }
+
+        // whitespace is allowed around operators and between nested filters: (& (a=b) (c=d))
+        Filter filter() {
+            expect('(');
+            skipSpace();
+            Filter f;
+            char c = peek();
+            if (c == '&' || c == '|') {
+                pos++;
+                List<Filter> children = new ArrayList<>();
+                for (skipSpace(); peek() == '('; skipSpace()) children.add(filter());
+                if (children.isEmpty()) throw new IllegalArgumentException("Empty " + c + " filter");
+                f = c == '&' ? new And(children) : new Or(children);
+            } else if (c == '!') {
+                pos++;
+                skipSpace();
+                f = new Not(filter());
+                skipSpace();
+            } else {
+                f = item();
+            }
+            expect(')');
+            return f;
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        Filter item() {
+            int eq = s.indexOf('=', pos);
+            if (eq < 0) throw new IllegalArgumentException("Missing '=' at " + pos);
+            attr = attribute(s.substring(pos, eq).trim());
+            int end = eq + 1;
+            while (end < s.length() && s.charAt(end) != ')') end++;
+            String raw = s.substring(eq + 1, end);
+            pos = end;
+
+            String[] pieces = raw.split("\\*", -1);
+            if (pieces.length == 1) return new Match(attr, unescape(raw), Collections.emptyList(), null, true);
+            String initial = pieces[0].isEmpty() ? null : unescape(pieces[0]);
+            String fin = pieces[pieces.length - 1].isEmpty() ? null : unescape(pieces[pieces.length - 1]);
+            List<String> any = new ArrayList<>();
+            for (int i = 1; i < pieces.length - 1; i++) if (!pieces[i].isEmpty()) any.add(unescape(pieces[i]));
+            return new Match(attr, initial, any, fin, false);
+        }
+
+        private static String attribute(String a) {
+            switch (a.toLowerCase(Locale.ROOT)) {
+                case "username": case "uid": return "username";
+                case "email": case "mail": return "email";
+                case "fullname": case "cn": return "fullname";
+                case "role": return "role";
+                default: throw new IllegalArgumentException("Unknown attribute: " + a);
+            }
+        }
+
+        private String unescape(String v) {
+            StringBuilder sb = new StringBuilder(v.length());
+            for (int i = 0; i < v.length(); i++) {
+                char c = v.charAt(i);
+                if (c == '\\' && i + 2 < v.length()) {
+                    sb.append((char) Integer.parseInt(v.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else sb.append(c);
+            }
+            // values are compared lower-cased, except usernames which are case-sensitive keys
+            return attr.equals("username") ? sb.toString() : UserIndex.key(sb.toString());
+        }
+
+        private char peek() {
+            if (pos >= s.length()) throw new IllegalArgumentException("Unexpected end of filter");
+            return s.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+            pos++;
+        }
+    }
+}
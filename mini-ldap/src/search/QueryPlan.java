@@ -0,0 +1,25 @@
+package com.minildap.search;
+
+import com.minildap.store.UserStore;
+
+import java.util.Set;
+
+/** The access path chosen for a filter: an index lookup when one applies, otherwise a full scan. */
+public final class QueryPlan {
+    private final Filter.Candidates access;
+
+    private QueryPlan(Filter.Candidates access) { this.access = access; }
+
+    public static QueryPlan of(Filter filter, UserStore store) {
+        return new QueryPlan(filter.candidates(store));
+    }
+
+    public boolean isIndexed() { return access != null; }
+
+    /** Superset of the matching usernames; only valid when isIndexed(). */
+    public Set<String> candidates() { return access.fetch.get(); }
+
+    public String describe() {
+        return access == null ? "scan" : "index:" + access.plan;
+    }
+}
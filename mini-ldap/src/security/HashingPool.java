@@ -0,0 +1,87 @@
+package com.minildap.security;
+
+import com.minildap.metrics.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool for password hashing and verification, sized apart from connection handling
+ * so a login storm can only use these threads. Once maxQueued tasks are waiting new work is
+ * refused with "Server busy" instead of queueing without limit.
+ */
+public class HashingPool {
+    private final ThreadPoolExecutor executor;
+
+    public HashingPool(int threads, int maxQueued) {
+        AtomicInteger n = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueued), r -> {
+            Thread t = new Thread(r, "minildap-hash-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> busy = new CompletableFuture<>();
+            busy.completeExceptionally(new Exception("Server busy, retry later"));
+            return busy;
+        }
+    }
+
+    /** Blocking variant for callers that own their thread (thread / virtual connection engines). */
+    public <T> T call(Supplier<T> task) throws Exception {
+        long t0 = System.nanoTime();
+        try {
+            return submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof Exception) throw (Exception) c;
+            throw new Exception(c);
+        } finally {
+            Trace.add(Trace.HASH, System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * Runs every task on the pool and returns the results in order, for bulk work like imports.
+     * At most two tasks per thread are in flight so logins still get queue space; when the
+     * queue is full anyway the task runs on the calling thread instead of failing.
+     */
+    public <T> List<T> callAll(List<Supplier<T>> tasks) throws Exception {
+        int window = executor.getMaximumPoolSize() * 2;
+        List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        long t0 = System.nanoTime();
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                if (i >= window) futures.get(i - window).join();
+                Supplier<T> task = tasks.get(i);
+                CompletableFuture<T> f;
+                try {
+                    f = CompletableFuture.supplyAsync(task, executor);
+                } catch (RejectedExecutionException e) {
+                    f = CompletableFuture.completedFuture(task.get());
+                }
+                futures.add(f);
+            }
+            List<T> out = new ArrayList<>(tasks.size());
+            for (CompletableFuture<T> f : futures) out.add(f.join());
+            return out;
+        } catch (CompletionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof Exception) throw (Exception) c;
+            throw new Exception(c);
+        } finally {
+            Trace.add(Trace.HASH, System.nanoTime() - t0);
+        }
+    }
+
+    public int queued() { return executor.getQueue().size(); }
+}
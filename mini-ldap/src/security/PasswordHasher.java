@@ -0,0 +1,18 @@
+package com.minildap.security;
+
+/**
+ * One password storage scheme. Stored values look like "{SCHEME}..." and PasswordUtils
+ * picks the hasher from that prefix, so several schemes can coexist in users.db.
+ */
+public interface PasswordHasher {
+
+    /** Scheme name without braces, e.g. "SSHA". */
+    String scheme();
+
+    String hash(String rawPassword);
+
+    boolean verify(String rawPassword, String stored);
+
+    /** True when the stored value is readable but weaker than what hash() would produce today. */
+    default boolean needsRehash(String stored) { return false; }
+}
@@ -1,53 +1,60 @@
 package com.minildap.security;
 
-import java.security.MessageDigest;
-import java.security.SecureRandom;
-import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Scheme registry. New hashes use the default scheme (-Dminildap.passwordScheme, PBKDF2 unless
+ * set); verification dispatches on the "{SCHEME}" prefix so older {SSHA} entries keep working.
+ */
 public class PasswordUtils {
 
-    // {SSHA} base64( SHA1(password + salt) + salt )
-    public static String hashSSHA(String password) {
-        try {
-            byte[] salt = new byte[8];
-            new SecureRandom().nextBytes(salt);
+    private static final Map<String, PasswordHasher> SCHEMES = new ConcurrentHashMap<>();
+    private static final SshaHasher SSHA = new SshaHasher();
+    private static volatile PasswordHasher defaultHasher;
+
+    static {
+        register(SSHA);
+        register(new Pbkdf2Hasher(Integer.getInteger("minildap.pbkdf2Iterations", 100_000)));
+        setDefaultScheme(System.getProperty("minildap.passwordScheme", "PBKDF2"));
+    }
+
+    public static void register(PasswordHasher hasher) {
+        SCHEMES.put(hasher.scheme().toUpperCase(), hasher);
+    }
+
+    public static void setDefaultScheme(String scheme) {
+        PasswordHasher h = SCHEMES.get(scheme.toUpperCase());
+        if (h == null) throw new IllegalArgumentException("Unknown password scheme: " + scheme);
+        defaultHasher = h;
+    }
 
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            sha1.update(password.getBytes("UTF-8"));
-            sha1.update(salt);
-            byte[] digest = sha1.digest();
+    public static String hash(String password) {
+        return defaultHasher.hash(password);
+    }
 
-            byte[] combo = new byte[digest.length + salt.length];
-            System.arraycopy(digest, 0, combo, 0, digest.length);
-            System.arraycopy(salt, 0, combo, digest.length, salt.length);
+    public static boolean verify(String rawPassword, String stored) {
+        PasswordHasher h = hasherFor(stored);
+        return h != null && h.verify(rawPassword, stored);
+    }
 
-            return "{SSHA}" + Base64.getEncoder().encodeToString(combo);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    /** True when a successful login should replace the stored value with a fresh default-scheme hash. */
+    public static boolean needsRehash(String stored) {
+        PasswordHasher h = hasherFor(stored);
+        return h != defaultHasher || h.needsRehash(stored);
+    }
+
+    public static String hashSSHA(String password) {
+        return SSHA.hash(password);
     }
 
     public static boolean verifySSHA(String rawPassword, String stored) {
-        try {
-            if (stored == null || !stored.startsWith("{SSHA}")) return false;
-            byte[] combo = Base64.getDecoder().decode(stored.substring(6));
-            if (combo.length < 20) return false; // SHA1 length
-
-            byte[] digest = new byte[20];
-            System.arraycopy(combo, 0, digest, 0, 20);
-            byte[] salt = new byte[combo.length - 20];
-            System.arraycopy(combo, 20, salt, 0, salt.length);
-
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            sha1.update(rawPassword.getBytes("UTF-8"));
-            sha1.update(salt);
-            byte[] test = sha1.digest();
-
-            if (test.length != digest.length) return false;
-            for (int i=0;i<test.length;i++) if (test[i]!=digest[i]) return false;
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        return SSHA.verify(rawPassword, stored);
+    }
+
+    private static PasswordHasher hasherFor(String stored) {
+        if (stored == null || !stored.startsWith("{")) return null;
+        int end = stored.indexOf('}');
+        return end < 0 ? null : SCHEMES.get(stored.substring(1, end).toUpperCase());
     }
 }
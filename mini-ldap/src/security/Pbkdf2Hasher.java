@@ -0,0 +1,67 @@
+package com.minildap.security;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+// {PBKDF2} iterations $ base64(salt) $ base64( PBKDF2-HMAC-SHA256(password, salt, iterations) )
+public class Pbkdf2Hasher implements PasswordHasher {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final String PREFIX = "{PBKDF2}";
+    private static final int KEY_BITS = 256;
+
+    private final int iterations;
+
+    public Pbkdf2Hasher(int iterations) { this.iterations = iterations; }
+
+    @Override
+    public String scheme() { return "PBKDF2"; }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(derive(password, salt, iterations));
+    }
+
+    @Override
+    public boolean verify(String rawPassword, String stored) {
+        try {
+            if (stored == null || !stored.startsWith(PREFIX)) return false;
+            String[] p = stored.substring(PREFIX.length()).split("\\$");
+            if (p.length != 3) return false;
+            int iter = Integer.parseInt(p[0]);
+            byte[] salt = Base64.getDecoder().decode(p[1]);
+            byte[] expected = Base64.getDecoder().decode(p[2]);
+            return MessageDigest.isEqual(derive(rawPassword, salt, iter), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String stored) {
+        try {
+            String p = stored.substring(PREFIX.length());
+            return Integer.parseInt(p.substring(0, p.indexOf('$'))) < iterations;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
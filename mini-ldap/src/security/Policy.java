@@ -0,0 +1,135 @@
+package com.minildap.security;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * Compiled RBAC policy. The text form is one grant per line:
+ *
+ *   role  developer  READUSER UPDATEUSER LISTUSER
+ *   role  user       READUSER:self UPDATEUSER:self LISTUSER
+ *   role  *          LISTUSER                     (any role without its own line)
+ *   group helpdesk   UPDATEUSER                   (members of the group, on top of their role)
+ *
+ * An operation is a command name or '*' for all of them; ":self" limits it to the caller's own entry.
+ * Each role and group compiles to two bitsets over OPERATIONS, so a decision is a bit test.
+ */
+public final class Policy {
+
+    /** Commands governed by the policy; a command's bit is its index here. At most 64. */
+    public static final String[] OPERATIONS = {
+            "ADDUSER", "READUSER", "UPDATEUSER", "DELETEUSER", "LISTUSER",
+            "CREATEGROUP", "DELETEGROUP", "ADDUSERTOGROUP", "REMOVEUSERFROMGROUP", "LISTGROUP",
+            "LISTMEMBERS", "PREFIX", "SEARCH", "STATS", "IMPORT", "EXPORT", "WATCH", "REPLICATE"
+    };
+
+    // operations whose first argument is a username, the only ones where ":self" means something
+    private static final Set<String> SELF_TARGETED = new HashSet<>(Arrays.asList("READUSER", "UPDATEUSER", "DELETEUSER"));
+
+    private static final long ALL = OPERATIONS.length == 64 ? -1L : (1L << OPERATIONS.length) - 1;
+
+    /** Used when no policy file exists; matches the rules the server always had. */
+    public static final String DEFAULT =
+            "role admin      *\n" +
+            "role developer  READUSER UPDATEUSER LISTUSER LISTGROUP LISTMEMBERS PREFIX SEARCH WATCH\n" +
+            "role *          READUSER:self UPDATEUSER:self LISTUSER LISTGROUP LISTMEMBERS PREFIX SEARCH\n";
+
+    /** What one role, group or principal may do: any target, or only its own entry. */
+    public static final class Grants {
+        public static final Grants NONE = new Grants(0, 0);
+
+        public final long any;
+        public final long self;
+
+        Grants(long any, long self) {
+            this.any = any;
+            this.self = self;
+        }
+
+        public Grants plus(Grants o) {
+            return o == NONE ? this : new Grants(any | o.any, self | o.self);
+        }
+
+        public boolean allows(int op, boolean onSelf) {
+            long bit = 1L << op;
+            return (any & bit) != 0 || (onSelf && (self & bit) != 0);
+        }
+    }
+
+    private final Map<String, Grants> roles;
+    private final Map<String, Grants> groups;
+    private final Grants anyRole;
+
+    private Policy(Map<String, Grants> roles, Map<String, Grants> groups) {
+        this.anyRole = roles.getOrDefault("*", Grants.NONE);
+        this.roles = roles;
+        this.groups = groups;
+    }
+
+    /** Bit index of a command, or -1 if the policy does not govern it. */
+    public static int operation(String command) {
+        for (int i = 0; i < OPERATIONS.length; i++) if (OPERATIONS[i].equalsIgnoreCase(command)) return i;
+        return -1;
+    }
+
+    public Grants role(String role) {
+        Grants g = roles.get(role == null ? "" : role.toLowerCase(Locale.ROOT));
+        return g == null ? anyRole : g;
+    }
+
+    public Grants group(String group) {
+        return groups.getOrDefault(group, Grants.NONE);
+    }
+
+    public boolean hasGroupGrants() { return !groups.isEmpty(); }
+
+    public static Policy compile(String text) throws IOException {
+        Map<String, long[]> roles = new HashMap<>();
+        Map<String, long[]> groups = new HashMap<>();
+        BufferedReader br = new BufferedReader(new StringReader(text));
+        String line;
+        int lineNo = 0;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] t = line.split("\\s+");
+            if (t.length < 2) throw new IOException("Line " + lineNo + ": expected 'role|group <name> <op>...'");
+            Map<String, long[]> target;
+            String name;
+            if (t[0].equalsIgnoreCase("role")) { target = roles; name = t[1].toLowerCase(Locale.ROOT); }
+            else if (t[0].equalsIgnoreCase("group")) { target = groups; name = t[1]; }
+            else throw new IOException("Line " + lineNo + ": unknown subject '" + t[0] + "'");
+            long[] bits = target.computeIfAbsent(name, k -> new long[2]);
+            for (int i = 2; i < t.length; i++) {
+                String op = t[i];
+                boolean self = false;
+                if (op.regionMatches(true, Math.max(0, op.length() - 5), ":self", 0, 5)) {
+                    op = op.substring(0, op.length() - 5);
+                    self = true;
+                }
+                if (op.equals("*")) {
+                    if (self) throw new IOException("Line " + lineNo + ": '*:self' is not allowed");
+                    bits[0] |= ALL;
+                    continue;
+                }
+                int bit = operation(op);
+                if (bit < 0) throw new IOException("Line " + lineNo + ": unknown operation '" + op + "'");
+                if (self && !SELF_TARGETED.contains(OPERATIONS[bit]))
+                    throw new IOException("Line " + lineNo + ": " + OPERATIONS[bit] + " has no user target, ':self' does not apply");
+                bits[self ? 1 : 0] |= 1L << bit;
+            }
+        }
+        return new Policy(freeze(roles), freeze(groups));
+    }
+
+    private static Map<String, Grants> freeze(Map<String, long[]> m) {
+        Map<String, Grants> out = new HashMap<>();
+        for (Map.Entry<String, long[]> e : m.entrySet()) out.put(e.getKey(), new Grants(e.getValue()[0], e.getValue()[1]));
+        return out;
+    }
+}
@@ -0,0 +1,62 @@
+package com.minildap.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+// {SSHA} base64( SHA1(password + salt) + salt )
+public class SshaHasher implements PasswordHasher {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Override
+    public String scheme() { return "SSHA"; }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[8];
+        RANDOM.nextBytes(salt);
+        byte[] digest = digest(password, salt);
+
+        byte[] combo = new byte[digest.length + salt.length];
+        System.arraycopy(digest, 0, combo, 0, digest.length);
+        System.arraycopy(salt, 0, combo, digest.length, salt.length);
+
+        return "{SSHA}" + Base64.getEncoder().encodeToString(combo);
+    }
+
+    @Override
+    public boolean verify(String rawPassword, String stored) {
+        try {
+            if (stored == null || !stored.startsWith("{SSHA}")) return false;
+            byte[] combo = Base64.getDecoder().decode(stored.substring(6));
+            if (combo.length < 20) return false; // SHA1 length
+
+            byte[] digest = new byte[20];
+            System.arraycopy(combo, 0, digest, 0, 20);
+            byte[] salt = new byte[combo.length - 20];
+            System.arraycopy(combo, 20, salt, 0, salt.length);
+
+            return MessageDigest.isEqual(digest(rawPassword, salt), digest);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] digest(String password, byte[] salt) {
+        MessageDigest sha1 = SHA1.get();
+        sha1.reset();
+        sha1.update(password.getBytes(StandardCharsets.UTF_8));
+        sha1.update(salt);
+        return sha1.digest();
+    }
+}
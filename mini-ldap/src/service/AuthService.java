@@ -1,19 +1,56 @@
 package com.minildap.service;
 
 import com.minildap.models.User;
+import com.minildap.security.HashingPool;
 import com.minildap.security.PasswordUtils;
 import com.minildap.store.UserStore;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 public class AuthService {
     private final UserStore userStore;
+    private final HashingPool hashingPool;
+    private final boolean rehash; // false on a replica, whose store only changes through replication
 
-    public AuthService(UserStore userStore) { this.userStore = userStore; }
+    public AuthService(UserStore userStore, HashingPool hashingPool) {
+        this(userStore, hashingPool, true);
+    }
+
+    public AuthService(UserStore userStore, HashingPool hashingPool, boolean rehash) {
+        this.userStore = userStore;
+        this.hashingPool = hashingPool;
+        this.rehash = rehash;
+    }
 
     public User authenticate(String username, String password) throws Exception {
         User u = userStore.findByUsername(username);
         if (u == null) throw new Exception("User not found");
-        if (!PasswordUtils.verifySSHA(password, u.getPasswordHash()))
+        if (!hashingPool.call(() -> PasswordUtils.verify(password, u.getPasswordHash())))
             throw new Exception("Invalid password");
+        rehashIfNeeded(u, password);
         return u;
     }
+
+    // for callers that must not park their thread while the hash runs (NioServer workers)
+    public CompletableFuture<User> authenticateAsync(String username, String password) {
+        User u = userStore.findByUsername(username);
+        if (u == null) return CompletableFuture.failedFuture(new Exception("User not found"));
+        return hashingPool.submit(() -> PasswordUtils.verify(password, u.getPasswordHash()))
+                .thenApply(ok -> {
+                    if (!ok) throw new CompletionException(new Exception("Invalid password"));
+                    rehashIfNeeded(u, password);
+                    return u;
+                });
+    }
+
+    // upgrade legacy or under-iterated hashes in the background while we still know the password
+    private void rehashIfNeeded(User u, String password) {
+        String old = u.getPasswordHash();
+        if (!rehash || !PasswordUtils.needsRehash(old)) return;
+        hashingPool.submit(() -> PasswordUtils.hash(password)).thenAccept(fresh -> {
+            if (!userStore.updatePassword(u.getUsername(), old, fresh)) return;
+            try { userStore.save(); } catch (Exception ignored) {}
+        });
+    }
 }
@@ -1,45 +1,124 @@
-
 package com.minildap.service;
 
+import com.minildap.security.Policy;
 import com.minildap.store.GroupStore;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Decisions come from a compiled Policy (data/policy.conf, built-in defaults when absent). The
+ * effective grants of a principal, role plus group grants, are cached per username and reused while
+ * the policy, the role and the user's membership set are the same objects they were computed from.
+ */
 public class AuthorizationService {
+    private static final int MAX_CACHED = 100_000;
+
     private final GroupStore groupStore;
+    private final File policyFile;
+    private volatile Policy policy;
+    private volatile long policyStamp;
+    private final Map<String, Decision> cache = new ConcurrentHashMap<>();
+
+    private static final class Decision {
+        final Policy policy;
+        final String role;
+        final Set<String> groups; // identity of GroupStore's copy-on-write membership set
+        final Policy.Grants grants;
+
+        Decision(Policy policy, String role, Set<String> groups, Policy.Grants grants) {
+            this.policy = policy;
+            this.role = role;
+            this.groups = groups;
+            this.grants = grants;
+        }
+    }
 
     public AuthorizationService(GroupStore groupStore) {
+        this(groupStore, null);
+    }
+
+    public AuthorizationService(GroupStore groupStore, File policyFile) {
         this.groupStore = groupStore;
+        this.policyFile = policyFile;
+        try {
+            this.policy = Policy.compile(Policy.DEFAULT);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public boolean isMemberOf(String username, String group) {
-        return groupStore.listGroupsOfUser(username).contains(group);
+        return groupStore.isMember(group, username);
     }
 
     public List<String> getUserGroups(String username) {
         return groupStore.listGroupsOfUser(username);
     }
 
+    /**
+     * op is a Policy.operation() index; target is the username the command acts on, if any.
+     * An operation the policy does not know (op &lt; 0) is denied: nobody can have been granted it.
+     */
+    public boolean canExecute(String username, String role, int op, String target) {
+        if (op < 0) return false;
+        // a self grant with no target yet lets the command report its own usage error
+        return grants(username, role).allows(op, target == null || target.equals(username));
+    }
+
     public boolean canExecute(String username, String role, String command) {
-        // Simple RBAC: admin full; developer read/list/update; user read self only
-        if ("admin".equalsIgnoreCase(role)) return true;
-
-        switch (command) {
-            case "LISTUSER":
-            case "READUSER":
-            case "LISTGROUP":
-                return true;
-            case "UPDATEUSER":
-                return true; // developer allowed
-            case "ADDUSER":
-            case "DELETEUSER":
-            case "CREATEGROUP":
-            case "DELETEGROUP":
-            case "ADDUSERTOGROUP":
-            case "REMOVEUSERFROMGROUP":
-                return "developer".equalsIgnoreCase(role) ? false : false; // only admin
-            default:
-                return false;
+        return canExecute(username, role, Policy.operation(command), null);
+    }
+
+    private Policy.Grants grants(String username, String role) {
+        Policy p = policy;
+        Set<String> groups = groupStore.membershipOf(username);
+        Decision d = cache.get(username);
+        if (d != null && d.policy == p && d.groups == groups && (d.role == role || d.role.equals(role))) return d.grants;
+
+        Policy.Grants g = p.role(role);
+        if (groups != null && p.hasGroupGrants()) {
+            for (String group : groups) g = g.plus(p.group(group));
         }
+        if (cache.size() >= MAX_CACHED) cache.clear();
+        cache.put(username, new Decision(p, role == null ? "" : role, groups, g));
+        return g;
+    }
+
+    /** Loads the policy file if it changed since the last load; a broken file keeps the current policy. */
+    public synchronized void reload() {
+        if (policyFile == null) return;
+        long stamp = policyFile.exists() ? policyFile.lastModified() ^ policyFile.length() : 0;
+        if (stamp == policyStamp) return;
+        try {
+            String text = stamp == 0 ? Policy.DEFAULT : new String(Files.readAllBytes(policyFile.toPath()), StandardCharsets.UTF_8);
+            policy = Policy.compile(text);
+            cache.clear();
+            policyStamp = stamp;
+            System.out.println("Authorization policy loaded from " + (stamp == 0 ? "built-in defaults" : policyFile.getPath()));
+        } catch (IOException e) {
+            policyStamp = stamp; // don't retry the same broken file every tick
+            System.err.println("Policy " + policyFile.getPath() + " not loaded, keeping the previous one: " + e.getMessage());
+        }
+    }
+
+    /** Polls the policy file so edits take effect without a restart. */
+    public void startReloader(long intervalMillis) {
+        reload();
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "minildap-policy-reloader");
+            t.setDaemon(true);
+            return t;
+        });
+        ses.scheduleWithFixedDelay(this::reload, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 }
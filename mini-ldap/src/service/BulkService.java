@@ -0,0 +1,306 @@
+package com.minildap.service;
+
+import com.minildap.models.User;
+import com.minildap.security.HashingPool;
+import com.minildap.security.PasswordUtils;
+import com.minildap.store.GroupStore;
+import com.minildap.store.UserStore;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Bulk load and dump of users with their group memberships, shared by the IMPORT/EXPORT
+ * commands and the offline BulkTool.
+ *
+ *   CSV   username,password,role,email,fullName,group1;group2   (a "username,..." header and # comments are skipped)
+ *   LDIF  records of "attr: value" lines separated by a blank line; attributes uid (or dn: uid=...),
+ *         userPassword, role, mail, cn, memberOf (repeatable)
+ *
+ * A password starting with '{' is taken as an already hashed value ({SSHA}, {PBKDF2}...), anything
+ * else is hashed. Records are applied batchSize at a time: the batch's passwords are hashed in
+ * parallel on the hashing pool, users and memberships go into the stores under one lock each, and
+ * the stores are persisted once per batch.
+ */
+public class BulkService {
+    public static final int DEFAULT_BATCH = 1000;
+
+    private final UserStore userStore;
+    private final GroupStore groupStore;
+    private final HashingPool hashingPool;
+
+    public enum Format {
+        CSV, LDIF;
+
+        public static Format parse(String s) throws Exception {
+            if ("CSV".equalsIgnoreCase(s)) return CSV;
+            if ("LDIF".equalsIgnoreCase(s)) return LDIF;
+            throw new Exception("Unknown format: " + s + " (CSV or LDIF)");
+        }
+    }
+
+    /** Per-record failures and per-batch progress of an import. */
+    public interface Listener {
+        void error(long line, String message);
+
+        void batch(Import progress);
+    }
+
+    public BulkService(UserStore userStore, GroupStore groupStore, HashingPool hashingPool) {
+        this.userStore = userStore;
+        this.groupStore = groupStore;
+        this.hashingPool = hashingPool;
+    }
+
+    public Import startImport(Format format, boolean upsert, int batchSize, Listener listener) {
+        return new Import(format, upsert, batchSize, listener);
+    }
+
+    private static final class Record {
+        final long line;
+        String username, password, role, email, fullName;
+        final List<String> groups = new ArrayList<>();
+
+        Record(long line) { this.line = line; }
+    }
+
+    /** One import in progress: feed it input lines, then finish(). Not thread safe. */
+    public final class Import {
+        private final Format format;
+        private final boolean upsert;
+        private final int batchSize;
+        private final Listener listener;
+        private final List<Record> pending = new ArrayList<>();
+        private Record ldif; // LDIF record being read
+        private long lines;
+        private long added, updated, failed, groupsCreated, batches;
+
+        private Import(Format format, boolean upsert, int batchSize, Listener listener) {
+            this.format = format;
+            this.upsert = upsert;
+            this.batchSize = batchSize;
+            this.listener = listener;
+        }
+
+        public void accept(String line) throws Exception {
+            lines++;
+            if (format == Format.CSV) {
+                String t = line.trim();
+                if (t.isEmpty() || t.startsWith("#") || (lines == 1 && t.regionMatches(true, 0, "username,", 0, 9))) return;
+                Record r = csv(t);
+                if (r != null) add(r);
+                return;
+            }
+            String t = line.trim();
+            if (t.isEmpty()) {
+                if (ldif != null) add(ldif);
+                ldif = null;
+                return;
+            }
+            if (t.startsWith("#")) return;
+            int colon = t.indexOf(':');
+            if (colon <= 0) {
+                fail(lines, "Expected 'attribute: value'");
+                return;
+            }
+            if (ldif == null) ldif = new Record(lines);
+            ldifAttribute(ldif, t.substring(0, colon).trim().toLowerCase(Locale.ROOT), t.substring(colon + 1).trim());
+        }
+
+        /** Applies what is still buffered; no further lines may be fed afterwards. */
+        public void finish() throws Exception {
+            if (ldif != null) add(ldif);
+            ldif = null;
+            flush();
+        }
+
+        public long lines() { return lines; }
+        public long added() { return added; }
+        public long updated() { return updated; }
+        public long failed() { return failed; }
+        public long groupsCreated() { return groupsCreated; }
+        public long batches() { return batches; }
+
+        private Record csv(String t) {
+            String[] p = t.split(",", -1);
+            if (p.length < 3 || p.length > 6) {
+                fail(lines, "Expected username,password,role[,email[,fullName[,groups]]]");
+                return null;
+            }
+            Record r = new Record(lines);
+            r.username = p[0].trim();
+            r.password = p[1];
+            r.role = p[2].trim();
+            r.email = p.length > 3 ? p[3].trim() : "";
+            r.fullName = p.length > 4 ? p[4].trim() : "";
+            if (p.length > 5) for (String g : p[5].split(";")) if (!g.trim().isEmpty()) r.groups.add(g.trim());
+            return r;
+        }
+
+        private void ldifAttribute(Record r, String attr, String value) {
+            switch (attr) {
+                case "dn":
+                    // dn: uid=alice,ou=users,... names the user when there is no uid line
+                    if (r.username == null && value.regionMatches(true, 0, "uid=", 0, 4)) {
+                        int end = value.indexOf(',');
+                        r.username = value.substring(4, end < 0 ? value.length() : end).trim();
+                    }
+                    break;
+                case "uid": r.username = value; break;
+                case "userpassword": r.password = value; break;
+                case "role": r.role = value; break;
+                case "mail": r.email = value; break;
+                case "cn": r.fullName = value; break;
+                case "memberof": r.groups.add(value.regionMatches(true, 0, "cn=", 0, 3)
+                        ? value.substring(3, value.indexOf(',') < 0 ? value.length() : value.indexOf(',')) : value); break;
+                default: break; // objectClass and friends
+            }
+        }
+
+        private void add(Record r) throws Exception {
+            String problem = validate(r);
+            if (problem != null) {
+                fail(r.line, problem);
+                return;
+            }
+            pending.add(r);
+            if (pending.size() >= batchSize) flush();
+        }
+
+        private String validate(Record r) {
+            if (r.username == null || r.username.isEmpty()) return "Missing username";
+            if (r.username.indexOf(';') >= 0 || r.username.chars().anyMatch(Character::isWhitespace))
+                return "Invalid username: " + r.username;
+            if (r.role == null || r.role.isEmpty()) r.role = "user";
+            for (String g : r.groups) if (g.chars().anyMatch(Character::isWhitespace)) return "Invalid group: " + g;
+            try {
+                // the rule ADDUSER applies; a pre-hashed password is stored as is, so it is held to it too
+                String stored = r.password != null && r.password.startsWith("{") ? r.password : null;
+                UserService.requirePlain(r.username, r.role, r.email, r.fullName, stored);
+                UserService.requirePlain(r.groups.toArray(new String[0]));
+            } catch (Exception e) {
+                return e.getMessage();
+            }
+            boolean exists = userStore.findByUsername(r.username) != null;
+            if (exists && !upsert) return "User exists";
+            if ((r.password == null || r.password.isEmpty()) && !exists) return "Missing password";
+            return null;
+        }
+
+        private void flush() throws Exception {
+            if (pending.isEmpty()) return;
+            // with upsert the last record for a user wins, otherwise the first one does
+            Map<String, Record> byName = new LinkedHashMap<>();
+            for (Record r : pending) {
+                if (!upsert && byName.containsKey(r.username)) fail(r.line, "Duplicate username in input");
+                else byName.put(r.username, r);
+            }
+            pending.clear();
+            List<Record> records = new ArrayList<>(byName.values());
+
+            List<Supplier<String>> work = new ArrayList<>();
+            List<Record> toHash = new ArrayList<>();
+            for (Record r : records) {
+                if (r.password != null && !r.password.isEmpty() && !r.password.startsWith("{")) {
+                    String raw = r.password;
+                    work.add(() -> PasswordUtils.hash(raw));
+                    toHash.add(r);
+                }
+            }
+            List<String> hashes = hashingPool.callAll(work);
+            for (int i = 0; i < toHash.size(); i++) toHash.get(i).password = hashes.get(i);
+
+            List<User> users = new ArrayList<>(records.size());
+            Set<String> rejected = new HashSet<>();
+            long replacing = 0;
+            for (Record r : records) {
+                User old = userStore.findByUsername(r.username);
+                String hash = r.password;
+                if (hash == null || hash.isEmpty()) {
+                    if (old == null) { // deleted since it was validated
+                        rejected.add(r.username);
+                        fail(r.line, "Missing password");
+                        continue;
+                    }
+                    hash = old.getPasswordHash();
+                }
+                if (old != null) replacing++;
+                users.add(new User(r.username, hash, r.email, r.fullName, r.role));
+            }
+            List<User> skipped = userStore.putAll(users, upsert);
+            for (User u : skipped) {
+                rejected.add(u.getUsername());
+                fail(byName.get(u.getUsername()).line, "User exists");
+            }
+
+            Map<String, List<String>> members = new LinkedHashMap<>();
+            for (Record r : records) {
+                if (rejected.contains(r.username)) continue;
+                for (String g : r.groups) members.computeIfAbsent(g, k -> new ArrayList<>()).add(r.username);
+            }
+            if (!members.isEmpty()) groupsCreated += groupStore.addMembers(members);
+
+            userStore.save();
+            if (!members.isEmpty()) groupStore.save();
+            updated += replacing;
+            added += records.size() - rejected.size() - replacing;
+            batches++;
+            listener.batch(this);
+        }
+
+        private void fail(long line, String message) {
+            failed++;
+            listener.error(line, message);
+        }
+    }
+
+    /**
+     * Every user as export lines, in username order, read without locking while the stores keep
+     * changing. Password hashes are only written when asked for; without them the output is a
+     * directory listing, with them it can be imported elsewhere as is.
+     */
+    public Iterator<String> export(Format format, boolean withHashes) {
+        Iterator<User> users = userStore.iterateFrom(null);
+        return new Iterator<String>() {
+            final Deque<String> ready = new ArrayDeque<>();
+            boolean header = format == Format.CSV;
+
+            public boolean hasNext() {
+                if (!ready.isEmpty()) return true;
+                if (header) {
+                    ready.add("username,password,role,email,fullName,groups");
+                    header = false;
+                    return true;
+                }
+                if (!users.hasNext()) return false;
+                render(users.next());
+                return true;
+            }
+
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return ready.poll();
+            }
+
+            private void render(User u) {
+                String hash = withHashes ? u.getPasswordHash() : "";
+                List<String> groups = groupStore.listGroupsOfUser(u.getUsername());
+                if (format == Format.CSV) {
+                    ready.add(u.getUsername() + "," + hash + "," + u.getRole() + "," + nullToEmpty(u.getEmail()) + ","
+                            + nullToEmpty(u.getFullName()) + "," + String.join(";", groups));
+                    return;
+                }
+                ready.add("dn: uid=" + u.getUsername() + ",ou=users,dc=minildap");
+                ready.add("uid: " + u.getUsername());
+                if (withHashes) ready.add("userPassword: " + hash);
+                ready.add("role: " + u.getRole());
+                if (!nullToEmpty(u.getEmail()).isEmpty()) ready.add("mail: " + u.getEmail());
+                if (!nullToEmpty(u.getFullName()).isEmpty()) ready.add("cn: " + u.getFullName());
+                for (String g : groups) ready.add("memberOf: cn=" + g + ",ou=groups,dc=minildap");
+                ready.add("");
+            }
+        };
+    }
+
+    private static String nullToEmpty(String s) { return s == null ? "" : s; }
+}
@@ -0,0 +1,110 @@
+package com.minildap.service;
+
+import com.minildap.security.HashingPool;
+import com.minildap.store.GroupStore;
+import com.minildap.store.Journal;
+import com.minildap.store.Snapshotter;
+import com.minildap.store.UserStore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Offline IMPORT/EXPORT straight against the data directory, for loads too big to push through a
+ * connection. The server must be stopped: both would append to the same journal.
+ *
+ *   java -cp out com.minildap.service.BulkTool import users.csv [--upsert] [--batch 5000]
+ *   java -cp out com.minildap.service.BulkTool export users.ldif [--hashes]
+ *
+ * The format follows the file extension (.ldif, anything else is CSV) unless --csv or --ldif is given;
+ * "-" reads stdin or writes stdout.
+ */
+public class BulkTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: BulkTool import <file> [--csv|--ldif] [--upsert] [--batch n] [--data dir]");
+            System.err.println("       BulkTool export <file> [--csv|--ldif] [--hashes] [--data dir]");
+            System.exit(2);
+        }
+        String path = args[1];
+        BulkService.Format format = path.toLowerCase().endsWith(".ldif") ? BulkService.Format.LDIF : BulkService.Format.CSV;
+        boolean upsert = false, hashes = false;
+        int batch = BulkService.DEFAULT_BATCH;
+        File data = new File("data");
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--csv": format = BulkService.Format.CSV; break;
+                case "--ldif": format = BulkService.Format.LDIF; break;
+                case "--upsert": upsert = true; break;
+                case "--hashes": hashes = true; break;
+                case "--batch": batch = Integer.parseInt(args[++i]); break;
+                case "--data": data = new File(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        String durability = System.getProperty("minildap.durability", "batch");
+        Journal journal = null;
+        if (!"none".equalsIgnoreCase(durability)) {
+            journal = new Journal(new File(data, "directory.journal"), Journal.parseDurability(durability),
+                    Long.getLong("minildap.fsyncIntervalMs", 100));
+            journal.open();
+        }
+        UserStore userStore = new UserStore(new File(data, "users.db"), journal);
+        GroupStore groupStore = new GroupStore(new File(data, "groups.db"), journal);
+        userStore.load();
+        groupStore.load();
+        HashingPool hashingPool = new HashingPool(
+                Integer.getInteger("minildap.hashThreads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("minildap.hashQueue", 256));
+        BulkService bulk = new BulkService(userStore, groupStore, hashingPool);
+
+        try {
+            if (args[0].equals("import")) {
+                runImport(bulk, path, format, upsert, batch);
+                // fold the imported records into the .db files so the next start does not replay them all
+                if (journal != null) new Snapshotter(userStore, groupStore, journal, 0, 0).snapshot();
+            } else {
+                runExport(bulk, path, format, hashes);
+            }
+        } finally {
+            if (journal != null) journal.close();
+        }
+    }
+
+    private static void runImport(BulkService bulk, String path, BulkService.Format format, boolean upsert, int batch) throws Exception {
+        long t0 = System.nanoTime();
+        BulkService.Import imp = bulk.startImport(format, upsert, batch, new BulkService.Listener() {
+            public void error(long line, String message) {
+                System.err.println(path + ":" + line + ": " + message);
+            }
+
+            public void batch(BulkService.Import p) {
+                System.out.printf("batch %d: %d lines, %d added, %d updated, %d failed%n",
+                        p.batches(), p.lines(), p.added(), p.updated(), p.failed());
+            }
+        });
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                path.equals("-") ? System.in : new FileInputStream(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) imp.accept(line);
+        }
+        imp.finish();
+        System.out.printf("Imported %d users (%d updated, %d failed, %d groups created) in %.1fs%n",
+                imp.added(), imp.updated(), imp.failed(), imp.groupsCreated(), (System.nanoTime() - t0) / 1e9);
+    }
+
+    private static void runExport(BulkService bulk, String path, BulkService.Format format, boolean hashes) throws IOException {
+        long n = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                path.equals("-") ? System.out : new FileOutputStream(path), StandardCharsets.UTF_8))) {
+            for (Iterator<String> it = bulk.export(format, hashes); it.hasNext(); n++) {
+                out.write(it.next());
+                out.write('\n');
+            }
+        }
+        if (!path.equals("-")) System.out.println("Exported " + n + " lines to " + path);
+    }
+}
@@ -3,6 +3,7 @@ package com.minildap.service;
 import com.minildap.models.Group;
 import com.minildap.store.GroupStore;
 
+import java.util.Iterator;
 import java.util.List;
 
 public class GroupService {
@@ -10,30 +11,55 @@ public class GroupService {
 
     public GroupService(GroupStore groupStore) { this.groupStore = groupStore; }
 
+    // groups are stored and replicated as "name,member;member" and members journaled as "group,member"
+    static void requireNames(String group, String member) throws Exception {
+        UserService.requirePlain(group, member);
+        if (member != null && member.indexOf(';') >= 0) throw new Exception("Member names may not contain ';'");
+    }
+
     public void createGroup(String name) throws Exception {
+        requireNames(name, null);
         if (groupStore.findByName(name) != null) throw new Exception("Group exists");
         groupStore.addGroup(new Group(name));
         groupStore.save();
     }
 
     public void deleteGroup(String name) throws Exception {
+        requireNames(name, null);
         if (groupStore.findByName(name) == null) throw new Exception("Group not found");
         groupStore.removeGroup(name);
         groupStore.save();
     }
 
     public void addMember(String group, String username) throws Exception {
+        requireNames(group, username);
         if (groupStore.findByName(group) == null) throw new Exception("Group not found");
         groupStore.addMember(group, username);
         groupStore.save();
     }
 
     public void removeMember(String group, String username) throws Exception {
+        requireNames(group, username);
         if (groupStore.findByName(group) == null) throw new Exception("Group not found");
         groupStore.removeMember(group, username);
         groupStore.save();
     }
 
+    /** First limit group names starting with prefix, in sorted order. */
+    public List<String> groupNamesWithPrefix(String prefix, int limit) {
+        return UserService.firstN(groupStore.namesWithPrefix(prefix), limit);
+    }
+
+    public Iterator<Group> iterateGroups(String after) {
+        return groupStore.iterateFrom(after);
+    }
+
+    public Iterator<String> iterateMembers(String group, String after) throws Exception {
+        Group g = groupStore.findByName(group);
+        if (g == null) throw new Exception("Group not found");
+        return g.membersAfter(after);
+    }
+
     public List<Group> listGroups() {
         return groupStore.getAllGroups();
     }
@@ -0,0 +1,90 @@
+package com.minildap.service;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-issued tokens that let a reconnecting client RESUME an authenticated session
+ * without sending the password again (and without paying for the hash verify).
+ */
+public class SessionService {
+
+    public static final class Session {
+        public final String token;
+        public final String username;
+        public final String role;
+        final long expiresAt;
+
+        Session(String token, String username, String role, long expiresAt) {
+            this.token = token;
+            this.username = username;
+            this.role = role;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> tokensByUser = new ConcurrentHashMap<>();
+
+    public SessionService(long ttlMillis) { this.ttlMillis = ttlMillis; }
+
+    public void startSweeper() {
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "minildap-session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(ttlMillis / 4, 60_000));
+        ses.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public String issue(String username, String role) {
+        byte[] raw = new byte[24];
+        RANDOM.nextBytes(raw);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        sessions.put(token, new Session(token, username, role, System.currentTimeMillis() + ttlMillis));
+        tokensByUser.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(token);
+        return token;
+    }
+
+    /** The live session for token, or null if it is unknown, revoked or expired. */
+    public Session resume(String token) {
+        Session s = sessions.get(token);
+        if (s == null) return null;
+        if (s.expiresAt < System.currentTimeMillis()) {
+            revoke(token);
+            return null;
+        }
+        return s;
+    }
+
+    public void revoke(String token) {
+        Session s = sessions.remove(token);
+        if (s == null) return;
+        Set<String> tokens = tokensByUser.get(s.username);
+        if (tokens != null) tokens.remove(token);
+    }
+
+    public void revokeUser(String username) {
+        Set<String> tokens = tokensByUser.remove(username);
+        if (tokens != null) for (String t : tokens) sessions.remove(t);
+    }
+
+    public int activeSessions() { return sessions.size(); }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Session s : sessions.values()) {
+            if (s.expiresAt < now) revoke(s.token);
+        }
+        tokensByUser.values().removeIf(Set::isEmpty);
+    }
+}
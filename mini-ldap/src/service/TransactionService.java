@@ -0,0 +1,205 @@
+package com.minildap.service;
+
+import com.minildap.models.Group;
+import com.minildap.models.User;
+import com.minildap.security.HashingPool;
+import com.minildap.security.PasswordUtils;
+import com.minildap.store.GroupStore;
+import com.minildap.store.Transactions;
+import com.minildap.store.UserStore;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * BEGIN ... COMMIT batches of user and group mutations. Steps are only checked for shape while
+ * they are queued; on commit the passwords are hashed in parallel, then every step is validated
+ * against the current data plus the effect of the steps before it, and only if all of them pass
+ * are they applied, with both store locks held and as a single journal record.
+ */
+public class TransactionService {
+    public static final int MAX_STEPS = 1000;
+
+    private final UserStore userStore;
+    private final GroupStore groupStore;
+    private final HashingPool hashingPool;
+    private final SessionService sessionService;
+
+    public TransactionService(UserStore userStore, GroupStore groupStore, HashingPool hashingPool, SessionService sessionService) {
+        this.userStore = userStore;
+        this.groupStore = groupStore;
+        this.hashingPool = hashingPool;
+        this.sessionService = sessionService;
+    }
+
+    public Transaction begin() {
+        return new Transaction();
+    }
+
+    private enum Kind { ADDUSER, UPDATEUSER, DELETEUSER, CREATEGROUP, DELETEGROUP, ADDUSERTOGROUP, REMOVEUSERFROMGROUP }
+
+    private static final class Step {
+        final Kind kind;
+        final String user, group;
+        String password, role, email, fullName;
+
+        Step(Kind kind, String user, String group) {
+            this.kind = kind;
+            this.user = user;
+            this.group = group;
+        }
+
+        String describe() {
+            return kind + " " + (user != null ? user : group) + (user != null && group != null ? " " + group : "");
+        }
+    }
+
+    /** Whether the command can be queued in a transaction. */
+    public static boolean isTransactional(String command) {
+        for (Kind k : Kind.values()) if (k.name().equals(command)) return true;
+        return false;
+    }
+
+    private static String joinFrom(String[] parts, int from) {
+        return from >= parts.length ? "" : String.join(" ", Arrays.asList(parts).subList(from, parts.length));
+    }
+
+    /** Queued steps of one connection. Not thread safe. */
+    public final class Transaction {
+        private final List<Step> steps = new ArrayList<>();
+
+        private Transaction() {}
+
+        public int size() { return steps.size(); }
+
+        /** Queues a command, split like the text protocol does it; fails on bad usage, not on data. */
+        public void add(String[] parts) throws Exception {
+            if (steps.size() >= MAX_STEPS) throw new Exception("Transaction too large (max " + MAX_STEPS + " steps)");
+            Kind kind = Kind.valueOf(parts[0].toUpperCase(Locale.ROOT));
+            Step s;
+            switch (kind) {
+                case ADDUSER:
+                    if (parts.length < 5) throw new Exception("Usage: ADDUSER <username> <password> <role> [email] [fullName]");
+                    s = new Step(kind, parts[1], null);
+                    s.password = parts[2];
+                    s.role = parts[3];
+                    s.email = parts[4];
+                    s.fullName = joinFrom(parts, 5);
+                    break;
+                case UPDATEUSER:
+                    if (parts.length < 4) throw new Exception("Usage: UPDATEUSER <username> <email> <fullName>");
+                    s = new Step(kind, parts[1], null);
+                    s.email = parts[2];
+                    s.fullName = joinFrom(parts, 3);
+                    break;
+                case DELETEUSER:
+                    if (parts.length < 2) throw new Exception("Usage: DELETEUSER <username>");
+                    s = new Step(kind, parts[1], null);
+                    break;
+                case CREATEGROUP:
+                case DELETEGROUP:
+                    if (parts.length < 2) throw new Exception("Usage: " + kind + " <groupname>");
+                    s = new Step(kind, null, parts[1]);
+                    break;
+                default: // ADDUSERTOGROUP, REMOVEUSERFROMGROUP
+                    if (parts.length < 3) throw new Exception("Usage: " + kind + " <username> <group>");
+                    s = new Step(kind, parts[1], parts[2]);
+                    break;
+            }
+            // the raw password is hashed before it is stored, so like ADDUSER it may contain anything
+            UserService.requirePlain(s.user, s.role, s.email, s.fullName);
+            if (s.group != null) GroupService.requireNames(s.group, s.user);
+            steps.add(s);
+        }
+
+        /** Applies every step or none; returns how many were applied. The transaction is spent either way. */
+        public int commit() throws Exception {
+            List<Step> work = new ArrayList<>(steps);
+            steps.clear();
+            if (work.isEmpty()) return 0;
+
+            // the slow part runs before any lock is taken
+            List<Supplier<String>> hashing = new ArrayList<>();
+            List<Step> toHash = new ArrayList<>();
+            for (Step s : work) {
+                if (s.kind != Kind.ADDUSER) continue;
+                String raw = s.password;
+                hashing.add(() -> PasswordUtils.hash(raw));
+                toHash.add(s);
+            }
+            List<String> hashes = hashingPool.callAll(hashing);
+            for (int i = 0; i < toHash.size(); i++) toHash.get(i).password = hashes.get(i);
+
+            Set<String> deleted = new HashSet<>();
+            Transactions.atomically(userStore, groupStore, () -> {
+                validate(work);
+                for (Step s : work) apply(s, deleted);
+            });
+            for (String u : deleted) sessionService.revokeUser(u);
+            return work.size();
+        }
+
+        // runs with both locks held, so nothing changes between these checks and apply()
+        private void validate(List<Step> work) throws Exception {
+            Map<String, Boolean> users = new HashMap<>(), groups = new HashMap<>();
+            for (int i = 0; i < work.size(); i++) {
+                Step s = work.get(i);
+                String problem = null;
+                boolean userExists = s.user != null && users.computeIfAbsent(s.user, u -> userStore.findByUsername(u) != null);
+                boolean groupExists = s.group != null && groups.computeIfAbsent(s.group, g -> groupStore.findByName(g) != null);
+                switch (s.kind) {
+                    case ADDUSER:
+                        if (userExists) problem = "User exists";
+                        else users.put(s.user, true);
+                        break;
+                    case UPDATEUSER:
+                        if (!userExists) problem = "User not found";
+                        break;
+                    case DELETEUSER:
+                        if (!userExists) problem = "User not found";
+                        else users.put(s.user, false);
+                        break;
+                    case CREATEGROUP:
+                        if (groupExists) problem = "Group exists";
+                        else groups.put(s.group, true);
+                        break;
+                    case DELETEGROUP:
+                        if (!groupExists) problem = "Group not found";
+                        else groups.put(s.group, false);
+                        break;
+                    default:
+                        if (!groupExists) problem = "Group not found";
+                        break;
+                }
+                if (problem != null) throw new Exception("Step " + (i + 1) + " (" + s.describe() + "): " + problem);
+            }
+        }
+
+        private void apply(Step s, Set<String> deleted) {
+            switch (s.kind) {
+                case ADDUSER:
+                    userStore.addUser(new User(s.user, s.password, s.email, s.fullName, s.role));
+                    break;
+                case UPDATEUSER:
+                    userStore.updateUser(s.user, s.email, s.fullName);
+                    break;
+                case DELETEUSER:
+                    userStore.removeUser(s.user);
+                    deleted.add(s.user);
+                    break;
+                case CREATEGROUP:
+                    groupStore.addGroup(new Group(s.group));
+                    break;
+                case DELETEGROUP:
+                    groupStore.removeGroup(s.group);
+                    break;
+                case ADDUSERTOGROUP:
+                    groupStore.addMember(s.group, s.user);
+                    break;
+                case REMOVEUSERFROMGROUP:
+                    groupStore.removeMember(s.group, s.user);
+                    break;
+            }
+        }
+    }
+}
@@ -1,20 +1,41 @@
 package com.minildap.service;
 
 import com.minildap.models.User;
+import com.minildap.search.Filter;
+import com.minildap.search.QueryPlan;
+import com.minildap.security.HashingPool;
 import com.minildap.security.PasswordUtils;
 import com.minildap.store.UserStore;
 
-import java.util.List;
+import java.util.*;
 
 public class UserService {
     private final UserStore userStore;
+    private final HashingPool hashingPool;
+    private final SessionService sessionService;
 
-    public UserService(UserStore userStore) { this.userStore = userStore; }
+    public UserService(UserStore userStore, HashingPool hashingPool, SessionService sessionService) {
+        this.userStore = userStore;
+        this.hashingPool = hashingPool;
+        this.sessionService = sessionService;
+    }
+
+    /**
+     * Stored fields end up in CSV rows, so separators and line breaks are refused up front;
+     * binary frames can carry both, the text protocol only the comma.
+     */
+    static void requirePlain(String... fields) throws Exception {
+        for (String f : fields) {
+            if (f != null && f.chars().anyMatch(ch -> ch < 0x20 || ch == ',')) throw new Exception("Fields may not contain ',' or control characters");
+        }
+    }
 
     public void createUser(String username, String rawPassword, String email, String fullName, String role) throws Exception {
+        requirePlain(username, email, fullName, role);
+        // checked again under the store lock: the hash takes long enough for another ADDUSER to get in
         if (userStore.findByUsername(username) != null) throw new Exception("User exists");
-        String hash = PasswordUtils.hashSSHA(rawPassword);
-        userStore.addUser(new User(username, hash, email, fullName, role));
+        String hash = hashingPool.call(() -> PasswordUtils.hash(rawPassword));
+        if (!userStore.addUserIfAbsent(new User(username, hash, email, fullName, role))) throw new Exception("User exists");
         userStore.save();
     }
 
@@ -24,21 +45,103 @@ public class UserService {
         return u;
     }
 
+    // null instead of an exception, for callers that only need to check existence
+    public User findUser(String username) {
+        return userStore.findByUsername(username);
+    }
+
     public void updateUser(String username, String email, String fullName) throws Exception {
-        User u = userStore.findByUsername(username);
-        if (u == null) throw new Exception("User not found");
-        u.setEmail(email);
-        u.setFullName(fullName);
+        requirePlain(email, fullName);
+        if (userStore.findByUsername(username) == null) throw new Exception("User not found");
+        userStore.updateUser(username, email, fullName);
         userStore.save();
     }
 
     public void deleteUser(String username) throws Exception {
         if (userStore.findByUsername(username) == null) throw new Exception("User not found");
         userStore.removeUser(username);
+        sessionService.revokeUser(username);
         userStore.save();
     }
 
+    /** Users in username order, starting after the given cursor (null: from the start). */
+    public Iterator<User> iterateUsers(String after) {
+        return userStore.iterateFrom(after);
+    }
+
+    /** First limit usernames starting with prefix, in sorted order; backs type-ahead in admin tools. */
+    public List<String> usernamesWithPrefix(String prefix, int limit) {
+        return firstN(userStore.usernamesWithPrefix(prefix), limit);
+    }
+
+    static List<String> firstN(Iterable<String> sorted, int limit) {
+        List<String> out = new ArrayList<>(Math.min(limit, 64));
+        for (Iterator<String> it = sorted.iterator(); it.hasNext() && out.size() < limit; ) out.add(it.next());
+        return out;
+    }
+
     public List<User> listAllUsers() {
         return userStore.getAllUsers();
     }
+
+    public static final class SearchResult {
+        public final List<User> users;
+        public final String plan;
+
+        SearchResult(List<User> users, String plan) {
+            this.users = users;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Users matching an LDAP-style filter, in username order, at most limit of them.
+     * Indexed filters only touch their candidates; anything else falls back to a scan.
+     */
+    public SearchResult search(String filterText, int limit) throws Exception {
+        Filter filter;
+        try {
+            filter = Filter.parse(filterText);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Bad filter: " + e.getMessage());
+        }
+        QueryPlan plan = QueryPlan.of(filter, userStore);
+        List<User> out = new ArrayList<>();
+        if (plan.isIndexed()) {
+            Set<String> candidates = plan.candidates();
+            if (candidates instanceof SortedSet && ((SortedSet<String>) candidates).comparator() == null) {
+                // already in username order (a range of the primary map): stop at limit
+                for (Iterator<String> it = candidates.iterator(); it.hasNext() && out.size() < limit; ) {
+                    User u = userStore.findByUsername(it.next());
+                    if (u != null && filter.matches(u)) out.add(u);
+                }
+            } else {
+                out = firstByName(candidates, filter, limit);
+            }
+        } else {
+            for (Iterator<User> it = userStore.iterateFrom(null); it.hasNext() && out.size() < limit; ) {
+                User u = it.next();
+                if (filter.matches(u)) out.add(u);
+            }
+        }
+        return new SearchResult(out, plan.describe());
+    }
+
+    // the limit smallest matching names of an unordered set: a bounded max-heap, O(n log limit),
+    // and a name that cannot make the cut is dropped before its user is even looked up
+    private List<User> firstByName(Set<String> candidates, Filter filter, int limit) {
+        if (limit <= 0) return new ArrayList<>();
+        Comparator<User> byName = Comparator.comparing(User::getUsername);
+        PriorityQueue<User> top = new PriorityQueue<>(Math.min(limit, 1024) + 1, byName.reversed());
+        for (String name : candidates) {
+            if (top.size() >= limit && name.compareTo(top.peek().getUsername()) >= 0) continue;
+            User u = userStore.findByUsername(name);
+            if (u == null || !filter.matches(u)) continue;
+            top.add(u);
+            if (top.size() > limit) top.poll();
+        }
+        List<User> out = new ArrayList<>(top);
+        out.sort(byName);
+        return out;
+    }
 }
@@ -0,0 +1,239 @@
+package com.minildap.service;
+
+import com.minildap.metrics.Metrics;
+import com.minildap.store.ChangeFeed;
+import com.minildap.store.GroupStore;
+import com.minildap.store.UserStore;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * WATCH subscriptions on the store change feed. A watch hands out change events in sequence order,
+ * plus a heartbeat carrying the current sequence number whenever it has been quiet for a while, so
+ * a client always knows where to resume from and notices a dead connection.
+ *
+ * A watch is pulled like any streamed reply. hasNext() blocks until there is something to send,
+ * which suits a thread per connection; an event-driven caller checks ready() first and otherwise
+ * parks with whenReady().
+ *
+ * Replicas use the same machinery through replicate(): every event unfiltered, with a shorter
+ * heartbeat so their lag figures stay fresh, and a full image first when they cannot resume.
+ */
+public class WatchService {
+    private static final int POLL_BATCH = 256;
+
+    private final ChangeFeed feed;
+    private final UserStore userStore;
+    private final GroupStore groupStore;
+    private final long heartbeatNanos, replicaHeartbeatNanos;
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "minildap-watch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WatchService(ChangeFeed feed, UserStore userStore, GroupStore groupStore, long heartbeatMillis, long replicaHeartbeatMillis) {
+        this.feed = feed;
+        this.userStore = userStore;
+        this.groupStore = groupStore;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, heartbeatMillis));
+        this.replicaHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, replicaHeartbeatMillis));
+        long tick = Math.min(1000, Math.max(100, Math.min(heartbeatMillis, replicaHeartbeatMillis) / 4));
+        ticker.scheduleWithFixedDelay(() -> { for (Watch w : watches) w.tick(); }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    public long currentSeq() { return feed.lastSeq(); }
+
+    public int watchers() { return watches.size(); }
+
+    /**
+     * Opens a watch from options "[FROM seq] [USER name] [GROUP name] [KIND user|group|member]".
+     * Without FROM it starts at the current position, with it every event after seq is replayed first.
+     */
+    public Watch watch(String[] options, int from) throws Exception {
+        Long after = null;
+        String user = null, group = null, kind = null;
+        for (int i = from; i < options.length; i++) {
+            String opt = options[i].toUpperCase(Locale.ROOT);
+            if (i + 1 >= options.length) throw new Exception("Missing value after " + opt);
+            String v = options[++i];
+            switch (opt) {
+                case "FROM":
+                    try {
+                        after = Long.parseLong(v);
+                    } catch (NumberFormatException e) {
+                        throw new Exception("Bad sequence number: " + v);
+                    }
+                    break;
+                case "USER": user = v; break;
+                case "GROUP": group = v; break;
+                case "KIND":
+                    kind = v.toLowerCase(Locale.ROOT);
+                    if (!kind.equals("user") && !kind.equals("group") && !kind.equals("member"))
+                        throw new Exception("KIND must be user, group or member");
+                    break;
+                default: throw new Exception("Unknown WATCH option: " + options[i - 1]);
+            }
+        }
+        String u = user, g = group, k = kind;
+        Predicate<ChangeFeed.Event> filter = e -> (u == null || u.equals(e.user)) && (g == null || g.equals(e.group))
+                && (k == null || k.equals(e.kind));
+        return open(after, filter);
+    }
+
+    /** A watch over every event after the given position (null: from now on). */
+    public Watch open(Long after, Predicate<ChangeFeed.Event> filter) throws Exception {
+        return open(after, filter, heartbeatNanos, false);
+    }
+
+    /** What a replica gets: the image to load, null when it can resume, and the events after it. */
+    public static final class Replication {
+        public final ChangeFeed.Image image;
+        public final Watch watch;
+
+        private Replication(ChangeFeed.Image image, Watch watch) {
+            this.image = image;
+            this.watch = watch;
+        }
+    }
+
+    /**
+     * Every event after position after; when after is null or cannot be resumed from (too old, or
+     * ahead of this server, which happens when the primary lost history) an image comes first.
+     */
+    public Replication replicate(Long after) throws Exception {
+        if (after != null && after <= feed.lastSeq() && after >= feed.oldestResumable())
+            return new Replication(null, open(after, e -> true, replicaHeartbeatNanos, true));
+        ChangeFeed.Image image = feed.image(userStore, groupStore);
+        return new Replication(image, open(image.seq, e -> true, replicaHeartbeatNanos, true));
+    }
+
+    private Watch open(Long after, Predicate<ChangeFeed.Event> filter, long heartbeatNanos, boolean replica) throws Exception {
+        long position;
+        // checked and subscribed under the feed lock would be tighter; a position that expires in
+        // between is reported by the first poll instead
+        if (after == null) {
+            position = feed.lastSeq();
+        } else {
+            long last = feed.lastSeq(), oldest = feed.oldestResumable();
+            if (after > last) throw new Exception("Unknown sequence number " + after + " (current is " + last + ")");
+            if (after < oldest)
+                throw new Exception("Cannot resume from " + after + ", events up to " + oldest + " are gone; reload and watch from the current position");
+            position = after;
+        }
+        Watch w = new Watch(heartbeatNanos, replica);
+        w.subscription = feed.subscribe(position, filter, w::wake);
+        watches.add(w);
+        Metrics.WATCHERS.incrementAndGet();
+        if (replica) Metrics.REPLICAS.incrementAndGet();
+        return w;
+    }
+
+    public final class Watch implements Iterator<ChangeFeed.Event> {
+        private ChangeFeed.Subscription subscription;
+        private final Deque<ChangeFeed.Event> pending = new ArrayDeque<>();
+        private final long heartbeatNanos;
+        private final boolean replica;
+        private long lastSent; // a heartbeat first thing tells the client where it starts
+        private boolean closed;
+        private String failure;
+        private Runnable waiter;
+
+        private Watch(long heartbeatNanos, boolean replica) {
+            this.heartbeatNanos = heartbeatNanos;
+            this.replica = replica;
+            this.lastSent = System.nanoTime() - heartbeatNanos;
+        }
+
+        /** Whether hasNext() would answer without blocking. */
+        public synchronized boolean ready() {
+            if (closed || !pending.isEmpty()) return true;
+            List<ChangeFeed.Event> events = subscription.poll(POLL_BATCH);
+            if (events == null) {
+                failure = subscription.resynced() ? "This replica reloaded its data from the primary; reload and watch again"
+                        : "Fell behind by more than the server keeps (at " + subscription.position() + "); reload and watch again";
+                close();
+                return true;
+            }
+            pending.addAll(events);
+            return !pending.isEmpty() || System.nanoTime() - lastSent >= heartbeatNanos;
+        }
+
+        /** Runs r once, possibly right away, as soon as ready() may have become true. */
+        public void whenReady(Runnable r) {
+            synchronized (this) {
+                if (!ready()) {
+                    waiter = r;
+                    return;
+                }
+            }
+            r.run();
+        }
+
+        /** Blocks until there is an event or a heartbeat to send; false once the watch ended. */
+        @Override
+        public synchronized boolean hasNext() {
+            while (!ready()) {
+                long wait = heartbeatNanos - (System.nanoTime() - lastSent);
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, wait));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                }
+            }
+            return !closed || !pending.isEmpty();
+        }
+
+        /** The next event, or a heartbeat: an event with kind "heartbeat" whose seq is the current position. */
+        @Override
+        public synchronized ChangeFeed.Event next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            lastSent = System.nanoTime();
+            ChangeFeed.Event e = pending.poll();
+            return e != null ? e : ChangeFeed.heartbeat(subscription.position());
+        }
+
+        /** Why the watch ended on the server's side, null if it did not. */
+        public synchronized String failure() { return failure; }
+
+        public void close() {
+            Runnable r;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                subscription.close();
+                watches.remove(this);
+                Metrics.WATCHERS.decrementAndGet();
+                if (replica) Metrics.REPLICAS.decrementAndGet();
+                notifyAll();
+                r = waiter;
+                waiter = null;
+            }
+            if (r != null) r.run();
+        }
+
+        // after every feed append, and from the ticker; never blocks
+        private void wake() {
+            Runnable r;
+            synchronized (this) {
+                notifyAll();
+                r = waiter;
+                waiter = null;
+            }
+            if (r != null) r.run();
+        }
+
+        private void tick() {
+            boolean due;
+            synchronized (this) { due = System.nanoTime() - lastSent >= heartbeatNanos; }
+            if (due) wake();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.minildap.store;
+
+import com.minildap.models.Group;
+import com.minildap.models.User;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Ordered stream of every store mutation, for WATCH subscribers. Each mutation gets the sequence
+ * number of its journal record (a transaction takes one number per mutation), so numbers keep
+ * increasing across restarts; without a journal they count from 0 on every start. The latest
+ * capacity events are kept in a ring, which is how far back a subscriber can resume.
+ *
+ * Stores call in with their lock held; journal appends happen under this feed's lock so events
+ * reach the ring in sequence order whichever store produced them.
+ */
+public class ChangeFeed {
+    private final Journal journal;
+    private final Event[] ring;
+    private long base; // sequence number at startup (or replica resync), events up to it are not in the ring
+    private long last;
+    private boolean resyncing; // a replica is loading an image: its records are not changes anyone should see
+    private final Set<Subscription> subscribers = ConcurrentHashMap.newKeySet();
+
+    public ChangeFeed(Journal journal, int capacity) {
+        this.journal = journal;
+        this.ring = new Event[Math.max(16, capacity)];
+        this.base = journal != null ? journal.lastSeq() : 0;
+        this.last = base;
+    }
+
+    public static final class Event {
+        public final long seq;
+        /** "user", "group" or "member"; "heartbeat" for the keep-alive that only reports the position */
+        public final String kind;
+        /** "put" or "delete" for users and groups, "add" or "remove" for memberships */
+        public final String op;
+        public final String user, group;
+        /** wall clock time the mutation was logged, for replication lag */
+        public final long time = System.currentTimeMillis();
+        private final String record;
+
+        Event(long seq, String kind, String op, String user, String group, String record) {
+            this.seq = seq;
+            this.kind = kind;
+            this.op = op;
+            this.user = user;
+            this.group = group;
+            this.record = record;
+        }
+
+        /** The journal record behind the event, tag included: what a store needs to apply it. Null for heartbeats. */
+        public String record() { return record; }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(96).append("{\"seq\":").append(seq)
+                    .append(",\"kind\":\"").append(kind).append('"');
+            if (op == null) return sb.append('}').toString();
+            sb.append(",\"op\":\"").append(op).append('"');
+            if (user != null) sb.append(",\"user\":\"").append(escape(user)).append('"');
+            if (group != null) sb.append(",\"group\":\"").append(escape(group)).append('"');
+            if (op.equals("put")) {
+                // the current entry, so a cache can apply the event without reading it back
+                String csv = record.substring(record.indexOf("PUT ") + 4);
+                if (kind.equals("user")) {
+                    User u = User.fromCsv(csv);
+                    if (u != null) sb.append(",\"data\":").append(u.toJsonPublic());
+                } else {
+                    sb.append(",\"data\":").append(Group.fromCsv(csv).toJson());
+                }
+            }
+            return sb.append('}').toString();
+        }
+
+        static Event parse(long seq, String tagged) {
+            boolean users = tagged.startsWith(UserStore.TAG + " ");
+            String rec = tagged.substring(tagged.indexOf(' ') + 1);
+            int sp = rec.indexOf(' ');
+            String op = rec.substring(0, sp), arg = rec.substring(sp + 1);
+            switch (op) {
+                case "PUT": {
+                    int comma = arg.indexOf(',');
+                    String name = comma < 0 ? arg : arg.substring(0, comma);
+                    return users ? new Event(seq, "user", "put", name, null, tagged) : new Event(seq, "group", "put", null, name, tagged);
+                }
+                case "DEL":
+                    return users ? new Event(seq, "user", "delete", arg, null, tagged) : new Event(seq, "group", "delete", null, arg, tagged);
+                default: { // MADD, MDEL
+                    int comma = arg.lastIndexOf(',');
+                    return new Event(seq, "member", op.equals("MADD") ? "add" : "remove",
+                            arg.substring(comma + 1), arg.substring(0, comma), tagged);
+                }
+            }
+        }
+
+        private static String escape(String s) { return s.replace("\\", "\\\\").replace("\"", "\\\""); }
+    }
+
+    /** Not a change: tells a quiet subscriber it is up to date at seq. */
+    public static Event heartbeat(long seq) {
+        return new Event(seq, "heartbeat", null, null, null, null);
+    }
+
+    // store lock held
+    void append(String tag, String record) {
+        synchronized (this) {
+            long seq = journal != null ? journal.append(tag, record) : last + 1;
+            if (resyncing) return;
+            add(seq, tag + " " + record);
+        }
+        signal();
+    }
+
+    // both store locks held; records carry their tags
+    void appendTransaction(List<String> records) {
+        synchronized (this) {
+            long end = journal != null ? journal.appendTransaction(records) : last + records.size();
+            long seq = end - records.size();
+            for (String r : records) add(++seq, r);
+        }
+        signal();
+    }
+
+    private void add(long seq, String tagged) {
+        ring[(int) (seq % ring.length)] = Event.parse(seq, tagged);
+        last = seq;
+    }
+
+    // outside the feed lock: listeners take their subscriber's own lock, which is held while polling us
+    private void signal() {
+        for (Subscription s : subscribers) s.listener.run();
+    }
+
+    public synchronized long lastSeq() { return last; }
+
+    /** Oldest position a subscriber can start from: every event after it is still in the ring. */
+    public synchronized long oldestResumable() {
+        return Math.max(base, last - ring.length);
+    }
+
+    public int subscriberCount() { return subscribers.size(); }
+
+    /**
+     * Replica side: the next mutation applied to the stores carries this number on the primary.
+     * Only the replicator writes to a replica's stores, so nothing can slip in between.
+     */
+    public synchronized void expect(long seq) {
+        last = seq - 1;
+    }
+
+    /**
+     * Replica side, before loading a fresh image: every subscriber is cut off, because its position
+     * refers to a history that no longer lines up, and the image's records are not published.
+     */
+    public void beginResync() {
+        synchronized (this) {
+            resyncing = true;
+            for (Subscription s : subscribers) s.lost = true;
+        }
+        signal();
+    }
+
+    /** Replica side, once the image is loaded: numbering continues after seq. */
+    public void endResync(long seq) {
+        synchronized (this) {
+            resyncing = false;
+            base = seq;
+            last = seq;
+            // anyone who subscribed meanwhile got a position from the old numbering
+            for (Subscription s : subscribers) s.lost = true;
+        }
+        signal();
+    }
+
+    /** Every user and group as a PUT record, current as of the image's seq. */
+    public Image image(UserStore users, GroupStore groups) {
+        synchronized (users) {
+            synchronized (groups) {
+                return new Image(lastSeq(), users.snapshotView(), groups.snapshotLines());
+            }
+        }
+    }
+
+    public static final class Image {
+        public final long seq;
+        private final List<User> users;
+        private final List<String> groupLines;
+
+        Image(long seq, List<User> users, List<String> groupLines) {
+            this.seq = seq;
+            this.users = users;
+            this.groupLines = groupLines;
+        }
+
+        /** Tagged records, users first; rendered as they are pulled. */
+        public Iterator<String> records() {
+            Iterator<User> u = users.iterator();
+            Iterator<String> g = groupLines.iterator();
+            return new Iterator<String>() {
+                public boolean hasNext() { return u.hasNext() || g.hasNext(); }
+
+                public String next() {
+                    return u.hasNext() ? UserStore.TAG + " PUT " + u.next().toCsv() : GroupStore.TAG + " PUT " + g.next();
+                }
+            };
+        }
+    }
+
+    /**
+     * Events after position that pass filter. listener runs after every append, on the appending
+     * thread and with a store lock held, so it must only wake someone up.
+     */
+    public Subscription subscribe(long position, Predicate<Event> filter, Runnable listener) {
+        Subscription s = new Subscription(position, filter, listener);
+        subscribers.add(s);
+        return s;
+    }
+
+    public final class Subscription {
+        private long position; // last sequence number handed out or filtered away
+        private final Predicate<Event> filter;
+        private final Runnable listener;
+        private boolean lost; // feed lock
+
+        private Subscription(long position, Predicate<Event> filter, Runnable listener) {
+            this.position = position;
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        /**
+         * Up to max matching events after the position, looking at no more than a few thousand so the
+         * feed lock is held briefly. Null once the position has fallen out of the ring.
+         */
+        public List<Event> poll(int max) {
+            synchronized (ChangeFeed.this) {
+                if (lost || position < Math.max(base, last - ring.length)) return null;
+                List<Event> out = new ArrayList<>(Math.min(max, 64));
+                for (int scanned = 0; position < last && out.size() < max && scanned < 4096; scanned++) {
+                    Event e = ring[(int) (++position % ring.length)];
+                    // a replica may skip numbers, whose slots still hold older events
+                    if (e != null && e.seq == position && filter.test(e)) out.add(e);
+                }
+                return out;
+            }
+        }
+
+        /** Whether a replica resync ended the subscription, rather than it falling behind. */
+        public boolean resynced() {
+            synchronized (ChangeFeed.this) { return lost; }
+        }
+
+        public long position() {
+            synchronized (ChangeFeed.this) { return position; }
+        }
+
+        public void close() {
+            subscribers.remove(this);
+        }
+    }
+}
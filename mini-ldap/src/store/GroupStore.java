@@ -1,61 +1,252 @@
 package com.minildap.store;
 
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.Trace;
 import com.minildap.models.Group;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * Readers never lock: groups live in a concurrent map, member sets are concurrent and the
+ * reverse index publishes a fresh set on every change. Writers serialize on the store monitor.
+ */
 public class GroupStore {
-    private final Map<String, Group> groups = new LinkedHashMap<>();
+    static final String TAG = "G";
+
+    private final ConcurrentSkipListMap<String, Group> groups = new ConcurrentSkipListMap<>();
+    // username -> names of the groups it belongs to, kept in step with every membership change
+    private final Map<String, Set<String>> groupsByUser = new ConcurrentHashMap<>();
     private final File file;
+    private final Journal journal; // null: every save() rewrites the whole file
+    private ChangeFeed feed;  // null: no WATCH support, records go straight to the journal
+    List<String> capture; // set by Transactions while it holds the lock: records go there, not to the journal
+
+    public GroupStore(File file) { this(file, null); }
 
-    public GroupStore(File file) { this.file = file; }
+    public GroupStore(File file, Journal journal) {
+        this.file = file;
+        this.journal = journal;
+    }
 
     public synchronized void load() throws IOException {
         groups.clear();
-        if (!file.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while((line=br.readLine())!=null){
-                if (line.trim().isEmpty()) continue;
-                Group g = Group.fromCsv(line);
-                groups.put(g.getName(), g);
+        groupsByUser.clear();
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while((line=br.readLine())!=null){
+                    if (line.trim().isEmpty()) continue;
+                    Group g = Group.fromCsv(line);
+                    groups.put(g.getName(), g);
+                }
             }
         }
+        if (journal != null) journal.replay(TAG, this::apply);
+        for (Group g : groups.values()) index(g);
     }
 
-    public synchronized void save() throws IOException {
-        file.getParentFile().mkdirs();
-        try (PrintWriter pw = new PrintWriter(new FileWriter(file,false))) {
-            for (Group g : groups.values()) pw.println(g.toCsv());
+    // with a journal the mutations are already logged, save() only waits until they are durable
+    public void save() throws IOException {
+        if (journal != null) {
+            journal.sync();
+            return;
+        }
+        synchronized (this) {
+            Snapshotter.writeAtomically(file, snapshotLines());
         }
     }
 
-    public synchronized Group findByName(String name) { return groups.get(name); }
+    File getFile() { return file; }
+
+    /** Publishes every later mutation to feed, which then also does the journal appends. */
+    public synchronized void setChangeFeed(ChangeFeed feed) { this.feed = feed; }
+
+    // member sets are mutated in place, so they are rendered while the lock is held
+    synchronized List<String> snapshotLines() {
+        List<String> lines = new ArrayList<>(groups.size());
+        for (Group g : groups.values()) lines.add(g.toCsv());
+        return lines;
+    }
+
+    public Group findByName(String name) { return groups.get(name); }
+
+    public void addGroup(Group g) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.GROUP_LOCK_WAIT.since(t0));
+            Group old = groups.put(g.getName(), g);
+            if (old != null) unindex(old);
+            index(g);
+            log("PUT " + g.toCsv());
+        }
+    }
 
-    public synchronized void addGroup(Group g) { groups.put(g.getName(), g); }
+    public void removeGroup(String name) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.GROUP_LOCK_WAIT.since(t0));
+            Group old = groups.remove(name);
+            if (old != null) unindex(old);
+            log("DEL " + name);
+        }
+    }
 
-    public synchronized void removeGroup(String name) { groups.remove(name); }
+    public void addMember(String group, String username) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.GROUP_LOCK_WAIT.since(t0));
+            Group g = groups.get(group);
+            if (g != null) {
+                g.addMember(username);
+                index(username, group);
+                log("MADD " + group + "," + username);
+            }
+        }
+    }
 
-    public synchronized void addMember(String group, String username) {
-        Group g = groups.get(group);
-        if (g != null) g.addMember(username);
+    /** Adds members to several groups under one lock acquisition, creating missing groups; returns how many were created. */
+    public int addMembers(Map<String, List<String>> membersByGroup) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.GROUP_LOCK_WAIT.since(t0));
+            int created = 0;
+            for (Map.Entry<String, List<String>> e : membersByGroup.entrySet()) {
+                String name = e.getKey();
+                Group g = groups.get(name);
+                if (g == null) {
+                    g = new Group(name);
+                    groups.put(name, g);
+                    log("PUT " + g.toCsv());
+                    created++;
+                }
+                for (String username : e.getValue()) {
+                    if (g.getMembers().contains(username)) continue;
+                    g.addMember(username);
+                    index(username, name);
+                    log("MADD " + name + "," + username);
+                }
+            }
+            return created;
+        }
     }
 
-    public synchronized void removeMember(String group, String username) {
-        Group g = groups.get(group);
-        if (g != null) g.removeMember(username);
+    public void removeMember(String group, String username) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.GROUP_LOCK_WAIT.since(t0));
+            Group g = groups.get(group);
+            if (g != null) {
+                g.removeMember(username);
+                unindex(username, group);
+                log("MDEL " + group + "," + username);
+            }
+        }
     }
 
-    public synchronized List<Group> getAllGroups() {
+    public List<Group> getAllGroups() {
         return new ArrayList<>(groups.values());
     }
 
-    public synchronized List<String> listGroupsOfUser(String username) {
-        return groups.values().stream()
-                .filter(g -> g.getMembers().contains(username))
-                .map(Group::getName)
-                .collect(Collectors.toList());
+    public Iterator<Group> iterateFrom(String after) {
+        return (after == null ? groups : groups.tailMap(after, false)).values().iterator();
+    }
+
+    /** Sorted live view of the group names starting with prefix; O(log n) to position, then walks in order. */
+    public NavigableSet<String> namesWithPrefix(String prefix) {
+        return prefix.isEmpty() ? groups.keySet()
+                : groups.keySet().subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    public List<String> listGroupsOfUser(String username) {
+        Set<String> names = groupsByUser.get(username);
+        return names == null ? new ArrayList<>() : new ArrayList<>(names);
+    }
+
+    /**
+     * The user's current set of group names, or null. Never mutated: a membership change publishes
+     * a new set, so callers may cache per user and compare by identity to detect changes.
+     */
+    public Set<String> membershipOf(String username) {
+        return groupsByUser.get(username);
+    }
+
+    public boolean isMember(String group, String username) {
+        Set<String> names = groupsByUser.get(username);
+        return names != null && names.contains(group);
+    }
+
+    /** Replica side: applies a record as the primary logged it. */
+    public void applyReplicated(String record) {
+        int sp = record.indexOf(' ');
+        if (sp < 0) return;
+        String op = record.substring(0, sp), arg = record.substring(sp + 1);
+        int comma = arg.lastIndexOf(',');
+        switch (op) {
+            case "PUT": addGroup(Group.fromCsv(arg)); break;
+            case "DEL": removeGroup(arg); break;
+            case "MADD": if (comma > 0) addMember(arg.substring(0, comma), arg.substring(comma + 1)); break;
+            case "MDEL": if (comma > 0) removeMember(arg.substring(0, comma), arg.substring(comma + 1)); break;
+        }
+    }
+
+    private void index(Group g) {
+        for (String m : g.getMembers()) index(m, g.getName());
+    }
+
+    private void unindex(Group g) {
+        for (String m : g.getMembers()) unindex(m, g.getName());
+    }
+
+    // index sets are copy-on-write: a reader holding the old set never sees it change
+    private void index(String username, String group) {
+        Set<String> names = groupsByUser.get(username);
+        if (names != null && names.contains(group)) return;
+        Set<String> next = names == null ? new LinkedHashSet<>() : new LinkedHashSet<>(names);
+        next.add(group);
+        groupsByUser.put(username, next);
+    }
+
+    private void unindex(String username, String group) {
+        Set<String> names = groupsByUser.get(username);
+        if (names == null || !names.contains(group)) return;
+        if (names.size() == 1) { groupsByUser.remove(username); return; }
+        Set<String> next = new LinkedHashSet<>(names);
+        next.remove(group);
+        groupsByUser.put(username, next);
+    }
+
+    private void log(String record) {
+        if (capture != null) capture.add(TAG + " " + record);
+        else if (feed != null) feed.append(TAG, record);
+        else if (journal != null) journal.append(TAG, record);
+    }
+
+    private void apply(String record) {
+        int sp = record.indexOf(' ');
+        if (sp < 0) return;
+        String op = record.substring(0, sp), arg = record.substring(sp + 1);
+        switch (op) {
+            case "PUT": {
+                Group g = Group.fromCsv(arg);
+                groups.put(g.getName(), g);
+                break;
+            }
+            case "DEL":
+                groups.remove(arg);
+                break;
+            case "MADD":
+            case "MDEL": {
+                int comma = arg.lastIndexOf(',');
+                Group g = comma < 0 ? null : groups.get(arg.substring(0, comma));
+                if (g == null) break;
+                if (op.equals("MADD")) g.addMember(arg.substring(comma + 1));
+                else g.removeMember(arg.substring(comma + 1));
+                break;
+            }
+        }
     }
 }
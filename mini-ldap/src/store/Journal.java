@@ -0,0 +1,349 @@
+package com.minildap.store;
+
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.Trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only mutation log shared by UserStore and GroupStore.
+ *
+ * Each line is "seq crc32 tag payload"; a torn or corrupt tail is dropped on open.
+ * Appends only queue the record, a single writer thread drains the queue so that every
+ * mutation that arrived while the previous fsync was running is written and forced together.
+ */
+public class Journal implements Closeable {
+
+    /** Tag of a transaction record: the records of both stores, each still carrying its own tag, in one line. */
+    static final String TX_TAG = "T";
+    private static final char TX_SEPARATOR = '\u001F'; // never part of a record, tokenizing splits on it
+
+    public enum Durability {
+        /** fsync every record on its own, sync() waits for it */
+        PER_OP,
+        /** group commit: one fsync per drained batch, sync() waits for it */
+        BATCH,
+        /** fsync on a timer, sync() returns immediately; a crash loses at most one interval */
+        PERIODIC
+    }
+
+    private final File file;
+    private final Durability durability;
+    private final long periodMillis;
+
+    private final Object lock = new Object();
+    private List<String> pending = new ArrayList<>();
+    private long lastSeq;
+    private long durableSeq;
+    private long rotatedAt;
+    private boolean rotateRequested;
+    private IOException failure;
+    private boolean closed;
+
+    private FileChannel channel;
+    private Thread writer;
+
+    public Journal(File file, Durability durability, long periodMillis) {
+        this.file = file;
+        this.durability = durability;
+        this.periodMillis = periodMillis;
+    }
+
+    public static Durability parseDurability(String s) {
+        switch (s.toLowerCase()) {
+            case "perop": case "per_op": return Durability.PER_OP;
+            case "periodic": return Durability.PERIODIC;
+            default: return Durability.BATCH;
+        }
+    }
+
+    /** Scans the existing log, cuts off a torn tail and starts the writer thread. */
+    public void open() throws IOException {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        long[] end = {0};
+        File cp = checkpointFile();
+        if (cp.exists()) lastSeq = Long.parseLong(new String(Files.readAllBytes(cp.toPath()), StandardCharsets.UTF_8).trim());
+        for (File seg : closedSegments()) scan(seg, (seq, line) -> lastSeq = seq, new long[1]);
+        rotatedAt = lastSeq;
+        scan(file, (seq, line) -> lastSeq = seq, end);
+        durableSeq = lastSeq;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(end[0]);
+        channel.position(end[0]);
+
+        writer = new Thread(this::writeLoop, "minildap-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Feeds every valid record carrying the given tag ("U", "G") to apply, in log order across all segments.
+     * Transaction records are unpacked in place, so each store sees its share of them at their position.
+     */
+    public void replay(String tag, Consumer<String> apply) throws IOException {
+        String prefix = tag + " ";
+        RecordVisitor v = (seq, rec) -> {
+            if (rec.startsWith(prefix)) {
+                apply.accept(rec.substring(prefix.length()));
+            } else if (rec.startsWith(TX_TAG + " ")) {
+                for (String sub : splitTransaction(rec.substring(TX_TAG.length() + 1)))
+                    if (sub.startsWith(prefix)) apply.accept(sub.substring(prefix.length()));
+            }
+        };
+        for (File seg : closedSegments()) scan(seg, v, new long[1]);
+        scan(file, v, new long[1]);
+    }
+
+    /**
+     * Closes the active segment as "name.&lt;lastSeq&gt;" and continues in a fresh file.
+     * The caller must hold every store lock so no append can slip in, which makes the
+     * returned sequence number the exact point-in-time of the stores' current contents.
+     */
+    public long rotate() throws IOException {
+        synchronized (lock) {
+            rotateRequested = true;
+            lock.notifyAll();
+            while (rotateRequested && failure == null) {
+                try { lock.wait(); } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) throw failure;
+            return rotatedAt;
+        }
+    }
+
+    /** Number of records in the active segment, i.e. what a restart would replay on top of the last snapshot. */
+    public long recordsSinceRotate() {
+        synchronized (lock) { return lastSeq - rotatedAt; }
+    }
+
+    /** Drops closed segments whose records are all covered by a snapshot taken at upToSeq. */
+    public void deleteSegmentsUpTo(long upToSeq) throws IOException {
+        // remember the position so sequence numbers keep increasing even when every segment is gone
+        Snapshotter.writeAtomically(checkpointFile(), Collections.singletonList(Long.toString(upToSeq)));
+        for (File seg : closedSegments()) {
+            if (segmentSeq(seg) <= upToSeq) seg.delete();
+        }
+    }
+
+    /** Queues a record and returns its sequence number; callers hold their store lock so order matches memory. */
+    public long append(String tag, String payload) {
+        synchronized (lock) {
+            long seq = ++lastSeq;
+            pending.add(encode(seq, tag + " " + payload));
+            lock.notifyAll();
+            return seq;
+        }
+    }
+
+    /**
+     * Queues tagged records as one transaction record, which takes a sequence number per record so
+     * numbers keep counting mutations; the line carries the last one. Returns that last number.
+     */
+    public long appendTransaction(List<String> records) {
+        synchronized (lock) {
+            lastSeq += records.size();
+            pending.add(encode(lastSeq, TX_TAG + " " + String.join(String.valueOf(TX_SEPARATOR), records)));
+            lock.notifyAll();
+            return lastSeq;
+        }
+    }
+
+    /** Sequence number of the latest record appended. */
+    public long lastSeq() {
+        synchronized (lock) { return lastSeq; }
+    }
+
+    static List<String> splitTransaction(String payload) {
+        List<String> out = new ArrayList<>();
+        int from = 0;
+        for (int i; (i = payload.indexOf(TX_SEPARATOR, from)) >= 0; from = i + 1) out.add(payload.substring(from, i));
+        out.add(payload.substring(from));
+        return out;
+    }
+
+    /** Blocks until everything appended before this call is durable, as far as the durability mode promises. */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long target = lastSeq;
+            if (durability == Durability.PERIODIC) {
+                if (failure != null) throw failure;
+                return;
+            }
+            long t0 = System.nanoTime();
+            while (durableSeq < target && failure == null && !closed) {
+                try { lock.wait(); } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            Trace.add(Trace.PERSIST, Metrics.JOURNAL_SYNC_WAIT.since(t0));
+            if (failure != null) throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try { if (writer != null) writer.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        if (channel != null) channel.close();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<String> batch;
+            long upTo;
+            synchronized (lock) {
+                try {
+                    if (durability == Durability.PERIODIC) {
+                        if (!closed && !rotateRequested) lock.wait(periodMillis);
+                    } else {
+                        while (pending.isEmpty() && !closed && !rotateRequested) lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.isEmpty() && closed) return;
+                batch = pending;
+                pending = new ArrayList<>();
+                upTo = lastSeq;
+            }
+            try {
+                if (!batch.isEmpty()) {
+                    if (durability == Durability.PER_OP) {
+                        for (String rec : batch) { write(rec); force(); }
+                    } else {
+                        StringBuilder sb = new StringBuilder();
+                        for (String rec : batch) sb.append(rec);
+                        write(sb.toString());
+                        force();
+                    }
+                }
+                synchronized (lock) {
+                    durableSeq = upTo;
+                    if (rotateRequested && pending.isEmpty()) {
+                        switchSegment();
+                        rotatedAt = lastSeq;
+                        rotateRequested = false;
+                    }
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    // writer thread, lock held, everything up to lastSeq already written
+    private void switchSegment() throws IOException {
+        if (channel.size() == 0) return;
+        channel.force(false);
+        channel.close();
+        Files.move(file.toPath(), new File(file.getPath() + "." + lastSeq).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private File checkpointFile() {
+        return new File(file.getPath() + ".checkpoint");
+    }
+
+    private List<File> closedSegments() {
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        File[] found = dir.listFiles((d, name) -> name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"));
+        List<File> segs = new ArrayList<>(found == null ? Collections.emptyList() : Arrays.asList(found));
+        segs.sort(Comparator.comparingLong(this::segmentSeq));
+        return segs;
+    }
+
+    private long segmentSeq(File seg) {
+        return Long.parseLong(seg.getName().substring(file.getName().length() + 1));
+    }
+
+    private void force() throws IOException {
+        long t0 = System.nanoTime();
+        channel.force(false);
+        Metrics.JOURNAL_FSYNC.since(t0);
+    }
+
+    private void write(String s) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    private static String encode(long seq, String rec) {
+        String body = rec.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+        return seq + " " + Long.toHexString(crc(seq, body)) + " " + body + "\n";
+    }
+
+    private static String decode(String body) {
+        if (body.indexOf('\\') < 0) return body;
+        StringBuilder sb = new StringBuilder(body.length());
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\' && i + 1 < body.length()) {
+                char n = body.charAt(++i);
+                sb.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static long crc(long seq, String body) {
+        CRC32 crc = new CRC32();
+        crc.update((seq + " " + body).getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    interface RecordVisitor { void visit(long seq, String record); }
+
+    // stops at the first malformed record; end[0] receives the byte offset just past the last good one
+    static void scan(File f, RecordVisitor visitor, long[] end) throws IOException {
+        end[0] = 0;
+        if (!f.exists()) return;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = 0;
+            int b;
+            while (true) {
+                line.reset();
+                while ((b = in.read()) >= 0 && b != '\n') line.write(b);
+                if (b < 0) return; // no newline: torn write
+                offset += line.size() + 1;
+                String s = line.toString("UTF-8");
+                int a = s.indexOf(' '), c = a < 0 ? -1 : s.indexOf(' ', a + 1);
+                if (c < 0) return;
+                long seq;
+                long crc;
+                try {
+                    seq = Long.parseLong(s.substring(0, a));
+                    crc = Long.parseLong(s.substring(a + 1, c), 16);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                String body = s.substring(c + 1);
+                if (crc(seq, body) != crc) return;
+                visitor.visit(seq, decode(body));
+                end[0] = offset;
+            }
+        }
+    }
+}
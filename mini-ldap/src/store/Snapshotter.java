@@ -0,0 +1,100 @@
+package com.minildap.store;
+
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.Trace;
+import com.minildap.models.Group;
+import com.minildap.models.User;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes users.db / groups.db from a point-in-time copy of both stores and
+ * then drops the journal segments that copy covers, so restart replay stays short.
+ * Only the copy happens under the store locks; file writing runs on the snapshot thread.
+ */
+public class Snapshotter {
+    private final UserStore userStore;
+    private final GroupStore groupStore;
+    private final Journal journal;
+    private final long intervalMillis;
+    private final long maxRecords;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "minildap-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private long lastSnapshot = System.currentTimeMillis();
+
+    /** Snapshots every intervalMillis, or sooner once the active journal segment holds maxRecords records. */
+    public Snapshotter(UserStore userStore, GroupStore groupStore, Journal journal, long intervalMillis, long maxRecords) {
+        this.userStore = userStore;
+        this.groupStore = groupStore;
+        this.journal = journal;
+        this.intervalMillis = intervalMillis;
+        this.maxRecords = maxRecords;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void tick() {
+        long pending = journal.recordsSinceRotate();
+        boolean due = System.currentTimeMillis() - lastSnapshot >= intervalMillis;
+        if (pending == 0 || (!due && pending < maxRecords)) return;
+        try {
+            snapshot();
+        } catch (IOException e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        }
+    }
+
+    public synchronized void snapshot() throws IOException {
+        long t0 = System.nanoTime();
+        List<User> users;
+        List<String> groupLines;
+        long seq;
+        synchronized (userStore) {
+            synchronized (groupStore) {
+                seq = journal.rotate();
+                users = userStore.snapshotView();
+                groupLines = groupStore.snapshotLines();
+            }
+        }
+        List<String> userLines = new ArrayList<>(users.size());
+        for (User u : users) userLines.add(u.toCsv());
+
+        writeAtomically(userStore.getFile(), userLines);
+        writeAtomically(groupStore.getFile(), groupLines);
+        journal.deleteSegmentsUpTo(seq);
+        lastSnapshot = System.currentTimeMillis();
+        Metrics.SNAPSHOT.since(t0);
+    }
+
+    /** temp file + fsync + rename: readers of the file see either the old or the new snapshot, never half of one */
+    static void writeAtomically(File file, List<String> lines) throws IOException {
+        long t0 = System.nanoTime();
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             Writer w = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                w.write(line);
+                w.write(System.lineSeparator());
+            }
+            w.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Trace.add(Trace.PERSIST, Metrics.FILE_WRITE.since(t0));
+    }
+}
@@ -0,0 +1,58 @@
+package com.minildap.store;
+
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.Trace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multi-store writes that succeed or vanish together. Both store locks are held for the whole
+ * unit of work (user store first, the same order as Snapshotter), and every record the stores
+ * would have logged one by one is collected and appended as a single journal record, so a
+ * crash replays all of it or none of it. Readers stay lock-free and may observe the work half
+ * applied while it runs; other writers cannot.
+ */
+public final class Transactions {
+
+    /** Checks and mutations to run with both locks held; throwing before the first mutation changes nothing. */
+    public interface Work {
+        void run() throws Exception;
+    }
+
+    private Transactions() {}
+
+    /** Runs work atomically against both stores and waits until its journal record is durable. */
+    public static void atomically(UserStore users, GroupStore groups, Work work) throws Exception {
+        List<String> records = new ArrayList<>();
+        long t0 = System.nanoTime();
+        synchronized (users) {
+            Trace.add(Trace.LOCK, Metrics.USER_LOCK_WAIT.since(t0));
+            long g0 = System.nanoTime();
+            synchronized (groups) {
+                Trace.add(Trace.LOCK, Metrics.GROUP_LOCK_WAIT.since(g0));
+                users.capture = records;
+                groups.capture = records;
+                try {
+                    work.run();
+                } finally {
+                    users.capture = null;
+                    groups.capture = null;
+                    // whatever was applied before a failure is in memory, so it must be in the log too
+                    if (!records.isEmpty()) {
+                        if (users.feed() != null) users.feed().appendTransaction(records);
+                        else if (users.journal() != null) users.journal().appendTransaction(records);
+                    }
+                }
+            }
+        }
+        if (!records.isEmpty()) save(users, groups);
+    }
+
+    // with a journal this is one sync; without one both files are rewritten, which is atomic per file only
+    private static void save(UserStore users, GroupStore groups) throws IOException {
+        users.save();
+        if (users.journal() == null) groups.save();
+    }
+}
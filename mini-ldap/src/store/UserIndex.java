@@ -0,0 +1,128 @@
+package com.minildap.store;
+
+import com.minildap.models.User;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary indexes over User attributes, maintained by UserStore under its write lock and
+ * read without locking. Keys are lower-cased (LDAP-style case-insensitive matching), posting
+ * sets hold usernames.
+ *
+ *   role      exact
+ *   email     exact / prefix (sorted), suffix via the reversed address (sorted)
+ *   fullName  exact / prefix (sorted), substring via trigrams
+ */
+public class UserIndex {
+    private final Map<String, Set<String>> byRole = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Set<String>> byEmail = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Set<String>> byEmailReversed = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Set<String>> byFullName = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> fullNameTrigrams = new ConcurrentHashMap<>();
+
+    void add(User u) {
+        String name = u.getUsername();
+        put(byRole, key(u.getRole()), name);
+        String email = key(u.getEmail());
+        put(byEmail, email, name);
+        put(byEmailReversed, reverse(email), name);
+        String fullName = key(u.getFullName());
+        put(byFullName, fullName, name);
+        for (String t : trigrams(fullName)) put(fullNameTrigrams, t, name);
+    }
+
+    void remove(User u) {
+        String name = u.getUsername();
+        drop(byRole, key(u.getRole()), name);
+        String email = key(u.getEmail());
+        drop(byEmail, email, name);
+        drop(byEmailReversed, reverse(email), name);
+        String fullName = key(u.getFullName());
+        drop(byFullName, fullName, name);
+        for (String t : trigrams(fullName)) drop(fullNameTrigrams, t, name);
+    }
+
+    void clear() {
+        byRole.clear();
+        byEmail.clear();
+        byEmailReversed.clear();
+        byFullName.clear();
+        fullNameTrigrams.clear();
+    }
+
+    // ---- lookups; all return usernames and never null ----
+
+    public Set<String> role(String value) { return get(byRole, key(value)); }
+
+    public Set<String> email(String value) { return get(byEmail, key(value)); }
+
+    public Set<String> fullName(String value) { return get(byFullName, key(value)); }
+
+    public NavigableMap<String, Set<String>> emailPrefix(String prefix) { return prefixRange(byEmail, key(prefix)); }
+
+    public NavigableMap<String, Set<String>> emailSuffix(String suffix) { return prefixRange(byEmailReversed, reverse(key(suffix))); }
+
+    public NavigableMap<String, Set<String>> fullNamePrefix(String prefix) { return prefixRange(byFullName, key(prefix)); }
+
+    /**
+     * Usernames whose fullName may contain the fragment: the intersection of its trigram postings,
+     * a superset of the real matches. Null when the fragment is shorter than three characters.
+     */
+    public Set<String> fullNameContains(String fragment) {
+        List<String> grams = trigrams(key(fragment));
+        if (grams.isEmpty()) return null;
+        List<Set<String>> postings = new ArrayList<>();
+        for (String g : grams) {
+            Set<String> p = fullNameTrigrams.get(g);
+            if (p == null) return Collections.emptySet();
+            postings.add(p);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+        Set<String> result = new HashSet<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !result.isEmpty(); i++) result.retainAll(postings.get(i));
+        return result;
+    }
+
+    /** Smallest posting size among the fragment's trigrams, an upper bound for fullNameContains. */
+    public long estimateContains(String fragment) {
+        long best = Long.MAX_VALUE;
+        for (String g : trigrams(key(fragment))) {
+            Set<String> p = fullNameTrigrams.get(g);
+            best = Math.min(best, p == null ? 0 : p.size());
+        }
+        return best;
+    }
+
+    public static String key(String s) { return s == null ? "" : s.toLowerCase(Locale.ROOT); }
+
+    private static String reverse(String s) { return new StringBuilder(s).reverse().toString(); }
+
+    private static List<String> trigrams(String s) {
+        if (s.length() < 3) return Collections.emptyList();
+        List<String> out = new ArrayList<>(s.length() - 2);
+        for (int i = 0; i + 3 <= s.length(); i++) out.add(s.substring(i, i + 3));
+        return out;
+    }
+
+    private static NavigableMap<String, Set<String>> prefixRange(ConcurrentSkipListMap<String, Set<String>> map, String prefix) {
+        return prefix.isEmpty() ? map : map.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static Set<String> get(Map<String, Set<String>> map, String key) {
+        Set<String> s = map.get(key);
+        return s == null ? Collections.emptySet() : s;
+    }
+
+    private static void put(Map<String, Set<String>> map, String key, String username) {
+        map.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(username);
+    }
+
+    private static void drop(Map<String, Set<String>> map, String key, String username) {
+        Set<String> s = map.get(key);
+        if (s == null) return;
+        s.remove(username);
+        if (s.isEmpty()) map.remove(key, s);
+    }
+}
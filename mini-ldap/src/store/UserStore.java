@@ -1,53 +1,199 @@
 package com.minildap.store;
 
+import com.minildap.metrics.Metrics;
+import com.minildap.metrics.Trace;
 import com.minildap.models.User;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * Readers never lock: the map is concurrent and a stored User is never modified in place,
+ * updates swap in a new copy. Writers serialize on the store monitor.
+ */
 public class UserStore {
-    private final Map<String, User> byUsername = new LinkedHashMap<>();
+    static final String TAG = "U";
+
+    private final ConcurrentSkipListMap<String, User> byUsername = new ConcurrentSkipListMap<>();
+    private final UserIndex index = new UserIndex();
     private final File file;
+    private final Journal journal; // null: every save() rewrites the whole file
+    private ChangeFeed feed;  // null: no WATCH support, records go straight to the journal
+    List<String> capture; // set by Transactions while it holds the lock: records go there, not to the journal
 
     public UserStore(File file) {
+        this(file, null);
+    }
+
+    public UserStore(File file, Journal journal) {
         this.file = file;
+        this.journal = journal;
     }
 
     public synchronized void load() throws IOException {
         byUsername.clear();
-        if (!file.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while((line=br.readLine())!=null){
-                if (line.trim().isEmpty()) continue;
-                User u = User.fromCsv(line);
-                if (u != null) byUsername.put(u.getUsername(), u);
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while((line=br.readLine())!=null){
+                    if (line.trim().isEmpty()) continue;
+                    User u = User.fromCsv(line);
+                    if (u != null) byUsername.put(u.getUsername(), u);
+                }
             }
         }
+        if (journal != null) journal.replay(TAG, this::apply);
+        index.clear();
+        for (User u : byUsername.values()) index.add(u);
     }
 
-    public synchronized void save() throws IOException {
-        file.getParentFile().mkdirs();
-        try (PrintWriter pw = new PrintWriter(new FileWriter(file, false))) {
-            for (User u : byUsername.values()) {
-                pw.println(u.toCsv());
-            }
+    // with a journal the mutations are already logged, save() only waits until they are durable
+    public void save() throws IOException {
+        if (journal != null) {
+            journal.sync();
+            return;
+        }
+        synchronized (this) {
+            List<String> lines = new ArrayList<>(byUsername.size());
+            for (User u : byUsername.values()) lines.add(u.toCsv());
+            Snapshotter.writeAtomically(file, lines);
         }
     }
 
-    public synchronized User findByUsername(String username) {
+    File getFile() { return file; }
+
+    /** Publishes every later mutation to feed, which then also does the journal appends. */
+    public synchronized void setChangeFeed(ChangeFeed feed) { this.feed = feed; }
+
+    ChangeFeed feed() { return feed; }
+
+    Journal journal() { return journal; }
+
+    // Snapshotter holds the store lock while calling this
+    List<User> snapshotView() { return new ArrayList<>(byUsername.values()); }
+
+    public User findByUsername(String username) {
         return byUsername.get(username);
     }
 
-    public synchronized List<User> getAllUsers() {
+    public UserIndex getIndex() { return index; }
+
+    /** Usernames in sorted order starting with prefix, read straight off the primary map. */
+    public NavigableSet<String> usernamesWithPrefix(String prefix) {
+        return prefix.isEmpty() ? byUsername.keySet()
+                : byUsername.keySet().subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    public List<User> getAllUsers() {
         return new ArrayList<>(byUsername.values());
     }
 
-    public synchronized void addUser(User u) {
-        byUsername.put(u.getUsername(), u);
+    // weakly consistent walk in username order: no copy, no lock, sees concurrent changes or not
+    public Iterator<User> iterateFrom(String after) {
+        return (after == null ? byUsername : byUsername.tailMap(after, false)).values().iterator();
+    }
+
+    public void addUser(User u) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.USER_LOCK_WAIT.since(t0));
+            put(u);
+            log("PUT " + u.toCsv());
+        }
+    }
+
+    /** Adds u unless its name is taken by the time the lock is held; false if it was. */
+    public boolean addUserIfAbsent(User u) {
+        return putAll(Collections.singletonList(u), false).isEmpty();
     }
 
-    public synchronized void removeUser(String username) {
-        byUsername.remove(username);
+    /**
+     * Puts a whole batch under one lock acquisition. Without replace, users whose name is taken
+     * by the time the lock is held are left alone and returned.
+     */
+    public List<User> putAll(List<User> users, boolean replace) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.USER_LOCK_WAIT.since(t0));
+            List<User> skipped = new ArrayList<>();
+            for (User u : users) {
+                if (!replace && byUsername.containsKey(u.getUsername())) {
+                    skipped.add(u);
+                    continue;
+                }
+                put(u);
+                log("PUT " + u.toCsv());
+            }
+            return skipped;
+        }
+    }
+
+    public void updateUser(String username, String email, String fullName) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.USER_LOCK_WAIT.since(t0));
+            User old = byUsername.get(username);
+            if (old == null) return;
+            User u = new User(old.getUsername(), old.getPasswordHash(), email, fullName, old.getRole());
+            put(u);
+            log("PUT " + u.toCsv());
+        }
+    }
+
+    /** Replaces the hash only if it is still expectedOld, so a concurrent password change wins. */
+    public boolean updatePassword(String username, String expectedOld, String newHash) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.USER_LOCK_WAIT.since(t0));
+            User old = byUsername.get(username);
+            if (old == null || !old.getPasswordHash().equals(expectedOld)) return false;
+            User u = new User(old.getUsername(), newHash, old.getEmail(), old.getFullName(), old.getRole());
+            put(u);
+            log("PUT " + u.toCsv());
+            return true;
+        }
+    }
+
+    public void removeUser(String username) {
+        long t0 = System.nanoTime();
+        synchronized (this) {
+            Trace.add(Trace.LOCK, Metrics.USER_LOCK_WAIT.since(t0));
+            User old = byUsername.remove(username);
+            if (old != null) index.remove(old);
+            log("DEL " + username);
+        }
+    }
+
+    /** Replica side: applies a record as the primary logged it. */
+    public void applyReplicated(String record) {
+        if (record.startsWith("PUT ")) {
+            User u = User.fromCsv(record.substring(4));
+            if (u != null) addUser(u);
+        } else if (record.startsWith("DEL ")) {
+            removeUser(record.substring(4));
+        }
+    }
+
+    private void put(User u) {
+        User old = byUsername.put(u.getUsername(), u);
+        if (old != null) index.remove(old);
+        index.add(u);
+    }
+
+    private void log(String record) {
+        if (capture != null) capture.add(TAG + " " + record);
+        else if (feed != null) feed.append(TAG, record);
+        else if (journal != null) journal.append(TAG, record);
+    }
+
+    private void apply(String record) {
+        if (record.startsWith("PUT ")) {
+            User u = User.fromCsv(record.substring(4));
+            if (u != null) byUsername.put(u.getUsername(), u);
+        } else if (record.startsWith("DEL ")) {
+            byUsername.remove(record.substring(4));
+        }
     }
 }
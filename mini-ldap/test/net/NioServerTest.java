@@ -0,0 +1,159 @@
+package com.minildap.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class NioServerTest {
+
+    private static final String PONG = "{\"status\":\"OK\",\"message\":\"PONG\"}";
+
+    // answers PING, refuses PROTO unless told otherwise, treats every other line like an IMPORT record: accepted, no reply
+    private static final class SilentHandler extends CommandHandler {
+        private final CountDownLatch release;
+        private final boolean acceptProto;
+        private boolean first = true;
+        private volatile boolean binary;
+
+        SilentHandler(CountDownLatch release, boolean acceptProto) {
+            super(null, null, null, null, null);
+            this.release = release;
+            this.acceptProto = acceptProto;
+        }
+
+        @Override
+        String process(String line) {
+            if (first) {
+                first = false;
+                // hold the worker until the client has filled the pending-line queue
+                try { release.await(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            if (line.startsWith("PROTO")) {
+                if (!acceptProto) return "{\"status\":\"ERROR\",\"message\":\"Permission denied\"}";
+                binary = true;
+                return "{\"status\":\"OK\",\"message\":\"Binary protocol enabled\"}";
+            }
+            return "PING".equals(line) ? PONG : STREAM;
+        }
+
+        @Override
+        boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        Iterator<String> takeStream() {
+            return Collections.emptyIterator();
+        }
+    }
+
+    @Test
+    void keepsReadingLinesThatGetNoReply() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Socket s = connect(start(release));
+        s.setSoTimeout(10_000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals(CommandHandler.GREETING, in.readLine());
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                for (int i = 0; i < 20 * 1024; i++) out.write("x\n".getBytes(StandardCharsets.UTF_8));
+                out.write("PING\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException ignored) {}
+        }, "nio-test-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // far more than MAX_PENDING_LINES are in flight before the worker starts taking them
+        Thread.sleep(300);
+        release.countDown();
+
+        assertEquals(PONG, in.readLine());
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        s.close();
+    }
+
+    @Test
+    void staysOnTextWhenProtoBinaryIsRefused() throws Exception {
+        CountDownLatch release = new CountDownLatch(0);
+        try (Socket s = connect(start(release))) {
+            s.setSoTimeout(10_000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals(CommandHandler.GREETING, in.readLine());
+            // the PING arrives in the same packet, before the server has answered the PROTO
+            s.getOutputStream().write("PROTO BINARY\nPING\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("{\"status\":\"ERROR\",\"message\":\"Permission denied\"}", in.readLine());
+            assertEquals(PONG, in.readLine());
+        }
+    }
+
+    @Test
+    void malformedFramesOnlyCloseTheirOwnConnection() throws Exception {
+        int port = start(new CountDownLatch(0), true);
+        byte[][] bad = {
+                {0x00},                                         // empty frame: no opcode byte
+                {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f}, // length that decodes negative
+                {0x07, 0x03, 0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f} // negative argc
+        };
+        for (byte[] frame : bad) {
+            try (Socket s = connect(port)) {
+                s.setSoTimeout(10_000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals(CommandHandler.GREETING, in.readLine());
+                OutputStream out = s.getOutputStream();
+                out.write("PROTO BINARY\n".getBytes(StandardCharsets.UTF_8));
+                out.write(frame);
+                out.flush();
+                assertEquals("{\"status\":\"OK\",\"message\":\"Binary protocol enabled\"}", in.readLine());
+                assertNull(in.readLine());
+            }
+        }
+        // the reactor is still serving
+        try (Socket s = connect(port)) {
+            s.setSoTimeout(10_000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals(CommandHandler.GREETING, in.readLine());
+            s.getOutputStream().write("PING\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(PONG, in.readLine());
+        }
+    }
+
+    private static int start(CountDownLatch release) throws IOException {
+        return start(release, false);
+    }
+
+    private static int start(CountDownLatch release, boolean acceptProto) throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        NioServer server = new NioServer(port, 1, () -> new SilentHandler(release, acceptProto));
+        Thread t = new Thread(() -> {
+            try { server.serve(); } catch (IOException ignored) {}
+        }, "nio-test");
+        t.setDaemon(true);
+        t.start();
+        return port;
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                if (i == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+}
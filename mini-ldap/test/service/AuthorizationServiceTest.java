@@ -0,0 +1,24 @@
+package com.minildap.service;
+
+import com.minildap.store.GroupStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuthorizationServiceTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void operationMissingFromThePolicyIsDenied() {
+        AuthorizationService authz = new AuthorizationService(new GroupStore(new File(dir, "groups.db")));
+        assertTrue(authz.canExecute("admin", "admin", "ADDUSER"));
+        assertFalse(authz.canExecute("admin", "admin", "NOSUCHOP"));
+        assertFalse(authz.canExecute("alice", "user", -1, "alice"));
+    }
+}
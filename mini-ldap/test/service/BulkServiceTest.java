@@ -0,0 +1,46 @@
+package com.minildap.service;
+
+import com.minildap.security.HashingPool;
+import com.minildap.store.GroupStore;
+import com.minildap.store.UserStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BulkServiceTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void importRefusesWhatAddUserRefuses() throws Exception {
+        UserStore users = new UserStore(new File(dir, "users.db"));
+        GroupStore groups = new GroupStore(new File(dir, "groups.db"));
+        BulkService bulk = new BulkService(users, groups, new HashingPool(2, 100));
+        List<Long> failedLines = new ArrayList<>();
+        BulkService.Import imp = bulk.startImport(BulkService.Format.CSV, false, 10, new BulkService.Listener() {
+            public void error(long line, String message) { failedLines.add(line); }
+            public void batch(BulkService.Import progress) {}
+        });
+
+        imp.accept("alice,pw,user,alice@corp.com,Alice Nguyen,devs");
+        imp.accept("tab,pw,user,tab@corp.com,Tab\tName");
+        imp.accept("unit,pw,user,unit\u001F@corp.com,Unit Separator");   // the journal's transaction separator
+        imp.accept("bell,{SSHA}ab\u0007cd,user,bell@corp.com,Bell");       // a stored hash is kept as is
+        imp.accept("grp,pw,user,grp@corp.com,Group,o\u0001ps");
+        imp.finish();
+
+        assertEquals(List.of(2L, 3L, 4L, 5L), failedLines);
+        assertEquals(1, imp.added());
+        assertNotNull(users.findByUsername("alice"));
+        assertNull(users.findByUsername("tab"));
+        assertNull(groups.findByName("o\u0001ps"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.minildap.service;
+
+import com.minildap.store.GroupStore;
+import com.minildap.store.Journal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupServiceTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void namesThatWouldSplitARecordAreRefusedBeforeAnythingIsLogged() throws Exception {
+        try (Journal journal = new Journal(new File(dir, "directory.journal"), Journal.Durability.BATCH, 0)) {
+            journal.open();
+            GroupStore store = new GroupStore(new File(dir, "groups.db"), journal);
+            store.load();
+            GroupService groups = new GroupService(store);
+            groups.createGroup("devs");
+            long seq = journal.lastSeq();
+
+            assertThrows(Exception.class, () -> groups.createGroup("a,b"));
+            assertThrows(Exception.class, () -> groups.createGroup("a\nb"));
+            assertThrows(Exception.class, () -> groups.addMember("devs", "x,y"));
+            assertThrows(Exception.class, () -> groups.addMember("devs", "x;y"));
+            assertThrows(Exception.class, () -> groups.addMember("devs", "x\u001Fy"));
+            assertThrows(Exception.class, () -> groups.removeMember("devs", "x,y"));
+            assertThrows(Exception.class, () -> groups.deleteGroup("devs\r"));
+
+            assertEquals(seq, journal.lastSeq());
+            assertNull(store.findByName("a,b"));
+            assertTrue(store.findByName("devs").getMembers().isEmpty());
+        }
+    }
+}
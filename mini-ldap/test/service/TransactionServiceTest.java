@@ -0,0 +1,141 @@
+package com.minildap.service;
+
+import com.minildap.models.Group;
+import com.minildap.security.HashingPool;
+import com.minildap.security.PasswordUtils;
+import com.minildap.store.GroupStore;
+import com.minildap.store.Journal;
+import com.minildap.store.Snapshotter;
+import com.minildap.store.Transactions;
+import com.minildap.store.UserStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionServiceTest {
+
+    @TempDir
+    File dir;
+
+    private Journal journal;
+    private UserStore users;
+    private GroupStore groups;
+    private TransactionService tx;
+
+    @BeforeEach
+    void start() throws Exception {
+        journal = new Journal(new File(dir, "directory.journal"), Journal.Durability.BATCH, 0);
+        journal.open();
+        users = new UserStore(new File(dir, "users.db"), journal);
+        groups = new GroupStore(new File(dir, "groups.db"), journal);
+        users.load();
+        groups.load();
+        tx = new TransactionService(users, groups, new HashingPool(2, 1000), new SessionService(60_000));
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        journal.close();
+    }
+
+    private static String[] cmd(String line) {
+        return line.split(" ");
+    }
+
+    @Test
+    void passwordMayContainACommaLikeOutsideATransaction() throws Exception {
+        TransactionService.Transaction t = tx.begin();
+        t.add(cmd("ADDUSER bob p,w user bob@corp.com Bob"));
+        assertEquals(1, t.commit());
+        assertTrue(PasswordUtils.verify("p,w", users.findByUsername("bob").getPasswordHash()));
+    }
+
+    @Test
+    void separatorsAreStillRefusedInStoredFields() {
+        TransactionService.Transaction t = tx.begin();
+        assertThrows(Exception.class, () -> t.add(cmd("ADDUSER bob pw user bob@corp.com Bob,Smith")));
+        assertThrows(Exception.class, () -> t.add(cmd("CREATEGROUP a,b")));
+        assertEquals(0, t.size());
+    }
+
+    @Test
+    void failedValidationAppliesNothing() throws Exception {
+        long before = journal.lastSeq();
+        TransactionService.Transaction t = tx.begin();
+        t.add(cmd("CREATEGROUP devs"));
+        t.add(cmd("ADDUSER carol pw user carol@corp.com Carol"));
+        t.add(cmd("ADDUSERTOGROUP carol nosuchgroup"));
+        Exception e = assertThrows(Exception.class, t::commit);
+        assertTrue(e.getMessage().startsWith("Step 3 (ADDUSERTOGROUP carol nosuchgroup)"), e.getMessage());
+
+        assertNull(groups.findByName("devs"));
+        assertNull(users.findByUsername("carol"));
+        assertEquals(before, journal.lastSeq());
+        assertEquals(0, t.size());
+    }
+
+    @Test
+    void committedStepsReplayTogetherAfterRestart() throws Exception {
+        TransactionService.Transaction t = tx.begin();
+        t.add(cmd("CREATEGROUP devs"));
+        t.add(cmd("ADDUSER carol pw user carol@corp.com Carol"));
+        t.add(cmd("ADDUSERTOGROUP carol devs"));
+        assertEquals(3, t.commit());
+        long seq = journal.lastSeq();
+        journal.close();
+
+        start();
+        assertEquals(seq, journal.lastSeq());
+        assertNotNull(users.findByUsername("carol"));
+        assertTrue(groups.isMember("devs", "carol"));
+    }
+
+    // transactions take the user lock, then the group lock, like the snapshot; taking them
+    // the other way round anywhere would deadlock against one of these sooner or later
+    @Test
+    void transactionsSnapshotsAndGroupWritesDoNotDeadlock() {
+        groups.addGroup(new Group("devs"));
+        Snapshotter snapshots = new Snapshotter(users, groups, journal, 60_000, 1_000);
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            ExecutorService pool = Executors.newFixedThreadPool(6);
+            try {
+                List<Future<?>> work = new ArrayList<>();
+                for (int w = 0; w < 2; w++) {
+                    int id = w;
+                    work.add(pool.submit(() -> {
+                        for (int i = 0; i < 200; i++) {
+                            Transactions.atomically(users, groups, () -> {
+                                assertTrue(Thread.holdsLock(users) && Thread.holdsLock(groups));
+                                groups.addMember("devs", "u" + id + "x" + System.nanoTime());
+                            });
+                        }
+                        return null;
+                    }));
+                    work.add(pool.submit(() -> {
+                        for (int i = 0; i < 20; i++) snapshots.snapshot();
+                        return null;
+                    }));
+                    work.add(pool.submit(() -> {
+                        for (int i = 0; i < 200; i++) groups.addMember("devs", "g" + id + "x" + i);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : work) f.get();
+            } finally {
+                pool.shutdownNow();
+            }
+        });
+        assertEquals(2 * 200 + 2 * 200, groups.findByName("devs").getMembers().size());
+    }
+}
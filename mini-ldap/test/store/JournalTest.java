@@ -0,0 +1,180 @@
+package com.minildap.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalTest {
+
+    @TempDir
+    File dir;
+
+    private File file() {
+        return new File(dir, "directory.journal");
+    }
+
+    private Journal open() throws IOException {
+        Journal j = new Journal(file(), Journal.Durability.BATCH, 0);
+        j.open();
+        return j;
+    }
+
+    private static List<String> replay(Journal j) throws IOException {
+        List<String> out = new ArrayList<>();
+        j.replay("U", out::add);
+        return out;
+    }
+
+    private static void append(Journal j, String... records) throws IOException {
+        for (String r : records) j.append("U", r);
+        j.sync();
+    }
+
+    @Test
+    void tornTailIsCutOffAndAppendsContinueAfterIt() throws Exception {
+        try (Journal j = open()) {
+            append(j, "PUT a", "PUT b", "PUT c");
+        }
+        long good = file().length();
+        // a crash in the middle of writing record 4
+        Files.write(file().toPath(), "4 1f2e U PUT d".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (Journal j = open()) {
+            assertEquals(3, j.lastSeq());
+            assertEquals(good, file().length());
+            assertEquals(Arrays.asList("PUT a", "PUT b", "PUT c"), replay(j));
+            append(j, "PUT e");
+        }
+        try (Journal j = open()) {
+            assertEquals(4, j.lastSeq());
+            assertEquals(Arrays.asList("PUT a", "PUT b", "PUT c", "PUT e"), replay(j));
+        }
+    }
+
+    @Test
+    void corruptRecordEndsTheLog() throws Exception {
+        try (Journal j = open()) {
+            append(j, "PUT a", "PUT b", "PUT c");
+        }
+        // flip the last character of record 2's payload: its checksum no longer matches
+        String text = new String(Files.readAllBytes(file().toPath()), StandardCharsets.UTF_8);
+        int at = text.indexOf("PUT b") + 4;
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.seek(text.substring(0, at).getBytes(StandardCharsets.UTF_8).length);
+            raf.write('x');
+        }
+
+        try (Journal j = open()) {
+            assertEquals(1, j.lastSeq());
+            assertEquals(Arrays.asList("PUT a"), replay(j));
+            append(j, "PUT d");
+        }
+        try (Journal j = open()) {
+            assertEquals(2, j.lastSeq());
+            assertEquals(Arrays.asList("PUT a", "PUT d"), replay(j));
+        }
+    }
+
+    @Test
+    void replaysRotatedSegmentsInOrderAndKeepsNumberingAfterDeletingThem() throws Exception {
+        try (Journal j = open()) {
+            append(j, "PUT a", "PUT b");
+            assertEquals(2, j.rotate());
+            append(j, "PUT c", "PUT d");
+            assertEquals(4, j.rotate());
+            append(j, "PUT e");
+            assertEquals(1, j.recordsSinceRotate());
+        }
+        assertTrue(new File(dir, "directory.journal.2").exists());
+        assertTrue(new File(dir, "directory.journal.4").exists());
+
+        try (Journal j = open()) {
+            assertEquals(5, j.lastSeq());
+            assertEquals(Arrays.asList("PUT a", "PUT b", "PUT c", "PUT d", "PUT e"), replay(j));
+
+            j.deleteSegmentsUpTo(2);
+            assertFalse(new File(dir, "directory.journal.2").exists());
+            assertTrue(new File(dir, "directory.journal.4").exists());
+            assertEquals(Arrays.asList("PUT c", "PUT d", "PUT e"), replay(j));
+
+            // nothing left but the checkpoint: numbering must still go on from there
+            assertEquals(5, j.rotate());
+            j.deleteSegmentsUpTo(5);
+            assertEquals(Arrays.asList(), replay(j));
+        }
+        try (Journal j = open()) {
+            assertEquals(5, j.lastSeq());
+            assertEquals(6, j.append("U", "PUT f"));
+            j.sync();
+        }
+        try (Journal j = open()) {
+            assertEquals(6, j.lastSeq());
+            assertEquals(Arrays.asList("PUT f"), replay(j));
+        }
+    }
+
+    @Test
+    void transactionRecordReplaysEachStoresShareInPlace() throws Exception {
+        try (Journal j = open()) {
+            append(j, "PUT a");
+            assertEquals(4, j.appendTransaction(Arrays.asList("U PUT b", "G PUT devs,b", "U DEL a")));
+            append(j, "PUT c");
+        }
+        try (Journal j = open()) {
+            assertEquals(5, j.lastSeq());
+            assertEquals(Arrays.asList("PUT a", "PUT b", "DEL a", "PUT c"), replay(j));
+            List<String> groups = new ArrayList<>();
+            j.replay("G", groups::add);
+            assertEquals(Arrays.asList("PUT devs,b"), groups);
+        }
+    }
+
+    @Test
+    void tornTransactionRecordReplaysNothingOfIt() throws Exception {
+        try (Journal j = open()) {
+            append(j, "PUT a");
+            j.appendTransaction(Arrays.asList("U PUT b", "G PUT devs,b"));
+            j.sync();
+        }
+        // the crash hit after the user part of the transaction made it to disk, before its end
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.setLength(raf.length() - "devs,b\n".length());
+        }
+        try (Journal j = open()) {
+            assertEquals(1, j.lastSeq());
+            assertEquals(Arrays.asList("PUT a"), replay(j));
+            List<String> groups = new ArrayList<>();
+            j.replay("G", groups::add);
+            assertEquals(Arrays.asList(), groups);
+        }
+    }
+
+    @Test
+    void splitTransactionKeepsEmptyAndLastParts() {
+        assertEquals(Arrays.asList("U PUT a", "", "G DEL g"), Journal.splitTransaction("U PUT a\u001F\u001FG DEL g"));
+        assertEquals(Arrays.asList("U PUT a"), Journal.splitTransaction("U PUT a"));
+    }
+
+    @Test
+    void recordsWithLineBreaksSurviveTheRoundTrip() throws Exception {
+        try (Journal j = open()) {
+            append(j, "PUT a\nb\\c\rd");
+        }
+        try (Journal j = open()) {
+            assertEquals(Arrays.asList("PUT a\nb\\c\rd"), replay(j));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.minildap.store;
+
+import com.minildap.models.Group;
+import com.minildap.models.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotterTest {
+
+    @TempDir
+    File dir;
+
+    private Journal journal;
+    private UserStore users;
+    private GroupStore groups;
+
+    private void start() throws IOException {
+        journal = new Journal(new File(dir, "directory.journal"), Journal.Durability.BATCH, 0);
+        journal.open();
+        users = new UserStore(new File(dir, "users.db"), journal);
+        groups = new GroupStore(new File(dir, "groups.db"), journal);
+        users.load();
+        groups.load();
+    }
+
+    private static User user(String name) {
+        return new User(name, "{SSHA}x", name + "@corp.com", "Nguyễn " + name, "user");
+    }
+
+    private String[] segments() {
+        String[] names = dir.list((d, name) -> name.matches("directory\\.journal\\.\\d+"));
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    void snapshotDropsCoveredSegmentsAndRestartRestoresEverything() throws Exception {
+        start();
+        users.addUser(user("alice"));
+        users.addUser(user("bob"));
+        groups.addGroup(new Group("devs"));
+        groups.addMember("devs", "alice");
+        users.save();
+        long before = journal.lastSeq();
+
+        new Snapshotter(users, groups, journal, 60_000, 1_000).snapshot();
+        assertEquals(0, journal.recordsSinceRotate());
+        assertEquals(0, segments().length);
+        String db = new String(Files.readAllBytes(new File(dir, "users.db").toPath()), StandardCharsets.UTF_8);
+        assertTrue(db.contains("Nguyễn alice"), db);
+
+        // after the snapshot: only these are left for replay
+        users.removeUser("bob");
+        users.addUser(user("carol"));
+        groups.addMember("devs", "carol");
+        users.save();
+        journal.close();
+
+        start();
+        assertEquals("Nguyễn alice", users.findByUsername("alice").getFullName());
+        assertNull(users.findByUsername("bob"));
+        assertEquals("carol", users.findByUsername("carol").getUsername());
+        assertEquals(new HashSet<>(Arrays.asList("alice", "carol")), groups.findByName("devs").getMembers());
+        assertEquals(before + 3, journal.lastSeq());
+        assertEquals(before + 4, journal.append("U", "DEL nobody"));
+        journal.close();
+    }
+
+    @Test
+    void numberingContinuesWhenSnapshotLeavesNoJournal() throws Exception {
+        start();
+        users.addUser(user("alice"));
+        users.save();
+        new Snapshotter(users, groups, journal, 60_000, 1_000).snapshot();
+        long seq = journal.lastSeq();
+        journal.close();
+        assertEquals(Collections.emptyList(), Arrays.asList(segments()));
+        assertEquals(0, new File(dir, "directory.journal").length());
+
+        start();
+        assertEquals(seq, journal.lastSeq());
+        assertEquals("alice", users.findByUsername("alice").getUsername());
+        journal.close();
+    }
+}